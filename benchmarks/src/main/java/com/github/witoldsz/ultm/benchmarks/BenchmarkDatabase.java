@@ -0,0 +1,42 @@
+package com.github.witoldsz.ultm.benchmarks;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.sql.DataSource;
+import org.h2.jdbcx.JdbcConnectionPool;
+
+/**
+ * In-memory H2 database behind H2's own (cheap) connection pool, so the numbers
+ * are dominated by ULTM and the driver rather than by opening physical connections.
+ *
+ * @author witoldsz
+ */
+public class BenchmarkDatabase {
+
+    public static final int ROWS = 1024;
+
+    private JdbcConnectionPool pool;
+
+    public void setup() throws SQLException {
+        pool = JdbcConnectionPool.create("jdbc:h2:mem:ultm_bench;DB_CLOSE_DELAY=-1", "sa", "");
+        pool.setMaxConnections(256);
+        try (Connection conn = pool.getConnection(); Statement s = conn.createStatement()) {
+            s.execute("create table PERSONS (ID int primary key, NAME varchar)");
+            for (int i = 0; i < ROWS; ++i) {
+                s.execute("insert into PERSONS (ID, NAME) values (" + i + ", 'Mr " + i + "')");
+            }
+        }
+    }
+
+    public void tearDown() throws SQLException {
+        try (Connection conn = pool.getConnection(); Statement s = conn.createStatement()) {
+            s.execute("SHUTDOWN");
+        }
+        pool.dispose();
+    }
+
+    public DataSource getDataSource() {
+        return pool;
+    }
+}
@@ -0,0 +1,175 @@
+package com.github.witoldsz.ultm.benchmarks;
+
+import com.github.witoldsz.ultm.TxManager;
+import com.github.witoldsz.ultm.ULTM;
+import com.github.witoldsz.ultm.UnitOfWork;
+import com.github.witoldsz.ultm.UnitOfWorkCall;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-transaction cost of {@link TxManager}, compared with the same work done on plain JDBC.
+ * <p>
+ * The {@code lazy*} benchmarks never call {@code getConnection()}, so they measure nothing but ULTM itself;
+ * the {@code raw*} benchmarks are the baseline for the statement-executing ones.
+ * Thread count and allocation profiling are chosen on the command line, e.g.:
+ * <pre>
+ *  java -jar target/benchmarks.jar TxOverheadBenchmark -t 1 -prof gc
+ *  java -jar target/benchmarks.jar TxOverheadBenchmark -t 8 -prof gc
+ * </pre>
+ *
+ * @author witoldsz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TxOverheadBenchmark {
+
+    private static final String SELECT_NAME = "select NAME from PERSONS where ID = ?";
+    private static final String UPDATE_NAME = "update PERSONS set NAME = ? where ID = ?";
+    private static final UnitOfWork NOOP = () -> {};
+    private static final UnitOfWorkCall<Object> NOOP_CALL = () -> null;
+
+    private final BenchmarkDatabase database = new BenchmarkDatabase();
+    private DataSource rawDataSource;
+    private DataSource managedDataSource;
+    private TxManager txManager;
+
+    /**
+     * Every benchmark thread updates its own row, so the multi-statement units do not contend on row locks.
+     */
+    @State(Scope.Thread)
+    public static class ThreadRow {
+
+        private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+        int id;
+
+        @Setup
+        public void setup() {
+            id = NEXT_ID.getAndIncrement() % BenchmarkDatabase.ROWS;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException {
+        database.setup();
+        rawDataSource = database.getDataSource();
+        ULTM ultm = new ULTM(rawDataSource);
+        txManager = ultm.getTxManager();
+        managedDataSource = ultm.getManagedDataSource();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        database.tearDown();
+    }
+
+    @Benchmark
+    public void lazyTx() {
+        txManager.tx(NOOP);
+    }
+
+    @Benchmark
+    public Object lazyTxResult() {
+        return txManager.txResult(NOOP_CALL);
+    }
+
+    @Benchmark
+    public void lazyBeginCommit() {
+        txManager.begin();
+        txManager.commit();
+    }
+
+    @Benchmark
+    public void lazyBeginRollback() {
+        txManager.begin();
+        txManager.rollback();
+    }
+
+    @Benchmark
+    public String singleStatement() {
+        return txManager.txResult(() -> selectName(managedDataSource, randomId()));
+    }
+
+    @Benchmark
+    public String multiStatement(ThreadRow row) {
+        return txManager.txResult(() -> selectUpdateSelect(managedDataSource, row.id));
+    }
+
+    @Benchmark
+    public String rawSingleStatement() throws SQLException {
+        try (Connection conn = rawDataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            String name = selectName(conn, randomId());
+            conn.commit();
+            return name;
+        }
+    }
+
+    @Benchmark
+    public String rawMultiStatement(ThreadRow row) throws SQLException {
+        try (Connection conn = rawDataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            String name = selectUpdateSelect(conn, row.id);
+            conn.commit();
+            return name;
+        }
+    }
+
+    private static int randomId() {
+        return ThreadLocalRandom.current().nextInt(BenchmarkDatabase.ROWS);
+    }
+
+    private static String selectName(DataSource dataSource, int id) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return selectName(conn, id);
+        }
+    }
+
+    private static String selectUpdateSelect(DataSource dataSource, int id) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return selectUpdateSelect(conn, id);
+        }
+    }
+
+    private static String selectName(Connection conn, int id) throws SQLException {
+        try (PreparedStatement s = conn.prepareStatement(SELECT_NAME)) {
+            s.setInt(1, id);
+            try (ResultSet r = s.executeQuery()) {
+                return r.next() ? r.getString(1) : null;
+            }
+        }
+    }
+
+    private static String selectUpdateSelect(Connection conn, int id) throws SQLException {
+        String before = selectName(conn, id);
+        try (PreparedStatement s = conn.prepareStatement(UPDATE_NAME)) {
+            s.setString(1, "Mr " + id);
+            s.setInt(2, id);
+            s.executeUpdate();
+        }
+        return before + selectName(conn, id);
+    }
+}
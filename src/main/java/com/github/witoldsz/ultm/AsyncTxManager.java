@@ -0,0 +1,32 @@
+package com.github.witoldsz.ultm;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs units of work within transactions on its own, bounded pool of threads, so that a caller (e.g. an event loop)
+ * does not have to block. Size the pool like the connection pool: there is no point in having more threads
+ * waiting for connections than there are connections.
+ *
+ * @author witoldsz
+ * @see ULTM#createAsyncTxManager(int, int)
+ */
+public interface AsyncTxManager extends AutoCloseable {
+
+    /**
+     * Does what {@link TxManager#txUnwrappedResult(UnitOfWorkCall)} does, but on one of the pool threads.
+     * When all the threads are busy and the queue is full, the unit is not run at all and the future
+     * fails with {@link RejectedExecutionException}, that is the backpressure signal.
+     *
+     * @param <T> type of result
+     * @param unit unit-of-work
+     * @return future completed with the result after commit or with the exception after rollback
+     */
+    <T> CompletableFuture<T> txAsync(UnitOfWorkCall<T> unit);
+
+    /**
+     * Stops accepting new units, the ones submitted already are going to be finished.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,165 @@
+package com.github.witoldsz.ultm;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Connection tuner (see {@link ULTM#ULTM(javax.sql.DataSource, Consumer)}) applying settings declared upfront.
+ * Every setter is potentially a round-trip to the database, so it remembers what it has set on each physical
+ * connection (the one {@code unwrap(Connection.class)} returns, so that pool's proxies are seen through)
+ * and calls only the setters of settings which differ. It assumes nothing else changes these settings
+ * behind its back, or restores them before connection returns to the pool.
+ * <p>
+ * This makes it unfit for pools which reset connection's settings when it is returned (HikariCP does, for the
+ * ones changed while it was borrowed): the tuner would keep believing its settings are in place and skip them.
+ * Such a pool should be configured with these settings itself instead.
+ * <p>
+ * Instances are immutable, each {@code with...} method returns a new one.
+ *
+ * @author witoldsz
+ */
+public final class ConnectionSettings implements Consumer<Connection> {
+
+    private static final Stripe[] KNOWN = new Stripe[16];
+
+    static {
+        for (int i = 0; i < KNOWN.length; ++i) {
+            KNOWN[i] = new Stripe();
+        }
+    }
+
+    private final Integer transactionIsolation;
+    private final Boolean readOnly;
+    private final String schema;
+    private final String catalog;
+    private final Integer holdability;
+    private final Integer networkTimeout;
+
+    private ConnectionSettings(Integer transactionIsolation, Boolean readOnly, String schema, String catalog,
+            Integer holdability, Integer networkTimeout) {
+        this.transactionIsolation = transactionIsolation;
+        this.readOnly = readOnly;
+        this.schema = schema;
+        this.catalog = catalog;
+        this.holdability = holdability;
+        this.networkTimeout = networkTimeout;
+    }
+
+    /**
+     * @return settings which change nothing, until configured with {@code with...} methods
+     */
+    public static ConnectionSettings create() {
+        return new ConnectionSettings(null, null, null, null, null, null);
+    }
+
+    /**
+     * @param level one of the {@code Connection.TRANSACTION_*} constants
+     * @return new settings
+     */
+    public ConnectionSettings withTransactionIsolation(int level) {
+        return new ConnectionSettings(level, readOnly, schema, catalog, holdability, networkTimeout);
+    }
+
+    public ConnectionSettings withReadOnly(boolean readOnly) {
+        return new ConnectionSettings(transactionIsolation, readOnly, schema, catalog, holdability, networkTimeout);
+    }
+
+    public ConnectionSettings withSchema(String schema) {
+        return new ConnectionSettings(transactionIsolation, readOnly, schema, catalog, holdability, networkTimeout);
+    }
+
+    public ConnectionSettings withCatalog(String catalog) {
+        return new ConnectionSettings(transactionIsolation, readOnly, schema, catalog, holdability, networkTimeout);
+    }
+
+    /**
+     * @param holdability one of the {@code ResultSet.HOLD_CURSORS_OVER_COMMIT} or
+     * {@code ResultSet.CLOSE_CURSORS_AT_COMMIT}
+     * @return new settings
+     */
+    public ConnectionSettings withHoldability(int holdability) {
+        return new ConnectionSettings(transactionIsolation, readOnly, schema, catalog, holdability, networkTimeout);
+    }
+
+    /**
+     * @param timeout see {@link Connection#setNetworkTimeout(java.util.concurrent.Executor, int)}, zero for none
+     * @return new settings
+     */
+    public ConnectionSettings withNetworkTimeout(Duration timeout) {
+        return new ConnectionSettings(transactionIsolation, readOnly, schema, catalog, holdability,
+            (int) Math.min(Integer.MAX_VALUE, timeout.toMillis()));
+    }
+
+    /**
+     * Applies the settings which differ from the ones applied before.
+     * @param connection connection to tune
+     * @throws UnitOfWorkException when connection fails to apply a setting
+     */
+    @Override
+    public void accept(Connection connection) {
+        try {
+            Known known = known(connection.unwrap(Connection.class));
+            if (transactionIsolation != null && !transactionIsolation.equals(known.transactionIsolation)) {
+                known.transactionIsolation = null;
+                connection.setTransactionIsolation(transactionIsolation);
+                known.transactionIsolation = transactionIsolation;
+            }
+            if (readOnly != null && !readOnly.equals(known.readOnly)) {
+                known.readOnly = null;
+                connection.setReadOnly(readOnly);
+                known.readOnly = readOnly;
+            }
+            if (catalog != null && !catalog.equals(known.catalog)) {
+                known.catalog = null;
+                connection.setCatalog(catalog);
+                known.catalog = catalog;
+            }
+            if (schema != null && !schema.equals(known.schema)) {
+                known.schema = null;
+                connection.setSchema(schema);
+                known.schema = schema;
+            }
+            if (holdability != null && !holdability.equals(known.holdability)) {
+                known.holdability = null;
+                connection.setHoldability(holdability);
+                known.holdability = holdability;
+            }
+            if (networkTimeout != null && !networkTimeout.equals(known.networkTimeout)) {
+                known.networkTimeout = null;
+                connection.setNetworkTimeout(Runnable::run, networkTimeout);
+                known.networkTimeout = networkTimeout;
+            }
+        } catch (SQLException ex) {
+            throw new UnitOfWorkException(ex);
+        }
+    }
+
+    /**
+     * Connection is used by one thread at a time, so only the lookup needs to be synchronized, and only with the
+     * lookups of connections falling into the same stripe. Stripe is picked by the same {@code hashCode()}
+     * its map looks connections up with.
+     */
+    private static Known known(Connection physical) {
+        Stripe stripe = KNOWN[(physical.hashCode() & 0x7fffffff) % KNOWN.length];
+        synchronized (stripe) {
+            return stripe.known.computeIfAbsent(physical, c -> new Known());
+        }
+    }
+
+    private static final class Stripe {
+        final Map<Connection, Known> known = new WeakHashMap<>();
+    }
+
+    private static final class Known {
+        Integer transactionIsolation;
+        Boolean readOnly;
+        String schema;
+        String catalog;
+        Integer holdability;
+        Integer networkTimeout;
+    }
+}
@@ -0,0 +1,31 @@
+package com.github.witoldsz.ultm;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Experimental: runs small, independent units of work submitted concurrently one after another on a single
+ * thread, many of them within one transaction, so that they share the cost of commit. Each unit runs as
+ * {@link Propagation#NESTED}, so the failing one is rolled back on its own, but when commit fails, it fails
+ * for all the units of the group. Units must not depend on being committed separately, nor take long.
+ *
+ * @author witoldsz
+ * @see ULTM#createGroupCommitter(int, int)
+ */
+public interface GroupCommitter extends AutoCloseable {
+
+    /**
+     * When the queue is full, the unit is not run at all and the future fails with
+     * {@link RejectedExecutionException}.
+     *
+     * @param unit unit-of-work
+     * @return future completed after the unit's group has committed, or with the exception of the unit or commit
+     */
+    CompletableFuture<Void> submit(UnitOfWork unit);
+
+    /**
+     * Stops accepting new units, the ones submitted already are going to be committed.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,76 @@
+package com.github.witoldsz.ultm;
+
+import java.time.Duration;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Connection held by a transaction for longer than {@link TxWatchdog} threshold.
+ *
+ * @author witoldsz
+ */
+public final class HeldConnection {
+
+    private final Thread thread;
+    private final String label;
+    private final Duration heldFor;
+    private final Throwable beginTrace;
+    private final BooleanSupplier abort;
+
+    public HeldConnection(Thread thread, String label, Duration heldFor, Throwable beginTrace) {
+        this(thread, label, heldFor, beginTrace, () -> false);
+    }
+
+    /**
+     * @param abort aborts the transaction, see {@link #abort()}
+     */
+    public HeldConnection(Thread thread, String label, Duration heldFor, Throwable beginTrace, BooleanSupplier abort) {
+        this.thread = thread;
+        this.label = label;
+        this.heldFor = heldFor;
+        this.beginTrace = beginTrace;
+        this.abort = abort;
+    }
+
+    /**
+     * @return thread which acquired the connection, see {@link Thread#getStackTrace()} to find out what it is doing
+     */
+    public Thread getThread() {
+        return thread;
+    }
+
+    /**
+     * @return label of the transaction, see {@link TxOptions#withLabel(String)}, {@code null} if none
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return time since connection was acquired, as of the moment it was reported
+     */
+    public Duration getHeldFor() {
+        return heldFor;
+    }
+
+    /**
+     * @return stack trace of the place transaction began, {@code null} unless it was sampled
+     */
+    public Throwable getBeginTrace() {
+        return beginTrace;
+    }
+
+    /**
+     * Aborts the transaction, see {@link java.sql.Connection#abort(java.util.concurrent.Executor)}: its connection
+     * is closed, so its thread gets {@link java.sql.SQLException} from whatever it does with the connection and
+     * the transaction ends up rolled back, even if its thread tries to commit it.
+     * @return {@code false} if transaction has ended since it was reported
+     */
+    public boolean abort() {
+        return abort.getAsBoolean();
+    }
+
+    @Override
+    public String toString() {
+        return "HeldConnection{thread=" + thread.getName() + ", label=" + label + ", heldFor=" + heldFor + '}';
+    }
+}
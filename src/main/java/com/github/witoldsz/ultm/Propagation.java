@@ -0,0 +1,29 @@
+package com.github.witoldsz.ultm;
+
+/**
+ * What unit-of-work does when transaction is in progress already, see
+ * {@link TxManager#txResult(Propagation, UnitOfWorkCall)}. When there is no transaction, it always begins a new one.
+ *
+ * @author witoldsz
+ */
+public enum Propagation {
+
+    /**
+     * Unit joins the transaction in progress. If it fails, whole transaction is marked rollback-only: it is
+     * going to be rolled back even if the exception gets caught and commit is called.
+     */
+    REQUIRED,
+
+    /**
+     * Unit joins the transaction in progress, but its failure rolls back only what the unit did,
+     * to a savepoint set before it. Savepoint is not set if transaction has not acquired the connection yet.
+     * Callbacks registered by the unit which failed are rolled back too: before-commit and after-commit ones are
+     * forgotten, after-rollback ones run right away.
+     */
+    NESTED,
+
+    /**
+     * Transaction in progress is suspended and unit runs in new transaction, with its own connection.
+     */
+    REQUIRES_NEW
+}
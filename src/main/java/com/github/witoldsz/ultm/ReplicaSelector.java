@@ -0,0 +1,33 @@
+package com.github.witoldsz.ultm;
+
+import com.github.witoldsz.ultm.internal.LeastInFlightReplicaSelector;
+import com.github.witoldsz.ultm.internal.RoundRobinReplicaSelector;
+
+/**
+ * Chooses which replica serves the connection of a read-only transaction.
+ * Every {@link #acquire(int)} is paired with exactly one {@link #release(int)} once the connection
+ * goes back to the replica, so implementations can keep track of the load.
+ *
+ * @author witoldsz
+ */
+public interface ReplicaSelector {
+
+    /**
+     * @param replicas number of replicas, always greater than zero
+     * @return index of the replica to use, from 0 (inclusive) to replicas (exclusive)
+     */
+    int acquire(int replicas);
+
+    /**
+     * @param replica index of replica returned by {@link #acquire(int)} whose connection has just been released
+     */
+    void release(int replica);
+
+    static ReplicaSelector roundRobin() {
+        return new RoundRobinReplicaSelector();
+    }
+
+    static ReplicaSelector leastInFlight() {
+        return new LeastInFlightReplicaSelector();
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.witoldsz.ultm;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Tells {@link TxManager#txWithRetry(RetryPolicy, UnitOfWork)} which failures are worth another attempt, how many
+ * attempts to make and how long to wait between them. Backoff grows exponentially and is jittered (random between
+ * half and full of the current backoff), so transactions which failed together do not retry together.
+ * <p>
+ * Instances are immutable, each {@code with...} method returns a new one.
+ *
+ * @author witoldsz
+ */
+public final class RetryPolicy {
+
+    /**
+     * Serialization failure and deadlock detected (PostgreSQL's code, others report deadlocks as 40001).
+     */
+    public static final Predicate<Throwable> SERIALIZATION_FAILURE_OR_DEADLOCK =
+        ex -> ex instanceof SQLException && isSerializationFailureOrDeadlock(((SQLException) ex).getSQLState());
+
+    private final int maxAttempts;
+    private final Duration initialBackoff;
+    private final Duration maxBackoff;
+    private final Predicate<Throwable> retryOn;
+    private final BiConsumer<Integer, Exception> retryListener;
+
+    private RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff,
+            Predicate<Throwable> retryOn, BiConsumer<Integer, Exception> retryListener) {
+        if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be positive");
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.retryOn = retryOn;
+        this.retryListener = retryListener;
+    }
+
+    /**
+     * @param maxAttempts number of attempts, including the first one
+     * @return policy retrying {@link #SERIALIZATION_FAILURE_OR_DEADLOCK} with backoff from 10ms up to 1s
+     */
+    public static RetryPolicy maxAttempts(int maxAttempts) {
+        return new RetryPolicy(maxAttempts, Duration.ofMillis(10), Duration.ofSeconds(1),
+            SERIALIZATION_FAILURE_OR_DEADLOCK, (attempt, ex) -> {});
+    }
+
+    public RetryPolicy withBackoff(Duration initialBackoff, Duration maxBackoff) {
+        return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, retryOn, retryListener);
+    }
+
+    /**
+     * @param retryOn tells which exceptions are worth retrying, it is tested against the exception thrown by
+     * unit-of-work and all its causes (and next exceptions of {@link SQLException}s)
+     * @return new policy
+     */
+    public RetryPolicy withRetryOn(Predicate<Throwable> retryOn) {
+        return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, retryOn, retryListener);
+    }
+
+    /**
+     * @param retryListener gets the number of failed attempt and its failure, before backing off
+     * @return new policy
+     */
+    public RetryPolicy withRetryListener(BiConsumer<Integer, Exception> retryListener) {
+        return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, retryOn, retryListener);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param attempt number of failed attempt, starting from 1
+     * @param failure exception thrown by the attempt
+     * @return {@code true} if there should be another attempt
+     */
+    public boolean shouldRetry(int attempt, Exception failure) {
+        if (attempt >= maxAttempts) return false;
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (retryOn.test(t)) return true;
+            if (t instanceof SQLException) {
+                for (SQLException next = ((SQLException) t).getNextException(); next != null; next = next.getNextException()) {
+                    if (retryOn.test(next)) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Notifies the listener and sleeps for the backoff time.
+     * @param attempt number of failed attempt, starting from 1
+     * @param failure exception thrown by the attempt
+     * @throws InterruptedException when interrupted while backing off
+     */
+    public void backOff(int attempt, Exception failure) throws InterruptedException {
+        retryListener.accept(attempt, failure);
+        Thread.sleep(backoffMillis(attempt));
+    }
+
+    private long backoffMillis(int attempt) {
+        long max = maxBackoff.toMillis();
+        long backoff = Math.min(max, initialBackoff.toMillis() << Math.min(attempt - 1, 30));
+        return backoff <= 1 ? backoff : backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    private static boolean isSerializationFailureOrDeadlock(String sqlState) {
+        return "40001".equals(sqlState) || "40P01".equals(sqlState);
+    }
+}
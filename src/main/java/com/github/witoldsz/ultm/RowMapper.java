@@ -0,0 +1,21 @@
+package com.github.witoldsz.ultm;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps current row of result set, see {@link TxManager#txStream(String, RowMapper, Object...)}.
+ *
+ * @author witoldsz
+ * @param <T> type of mapped row
+ */
+@FunctionalInterface
+public interface RowMapper<T> {
+
+    /**
+     * @param resultSet result set positioned at the row to map, it must not be moved
+     * @return mapped row
+     * @throws SQLException when reading the row fails
+     */
+    T map(ResultSet resultSet) throws SQLException;
+}
@@ -0,0 +1,37 @@
+package com.github.witoldsz.ultm;
+
+/**
+ * Statement left open by a transaction, closed (along with its result sets) by the time it is reported,
+ * see {@link ULTM#setStatementLeakListener(java.util.function.Consumer, boolean)}.
+ *
+ * @author witoldsz
+ */
+public final class StatementLeak {
+
+    private final String sql;
+    private final Throwable openedAt;
+
+    public StatementLeak(String sql, Throwable openedAt) {
+        this.sql = sql;
+        this.openedAt = openedAt;
+    }
+
+    /**
+     * @return SQL of prepared statement or stored procedure call, {@code null} for plain statement
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return stack trace of the place statement was opened, {@code null} unless it was captured
+     */
+    public Throwable getOpenedAt() {
+        return openedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "StatementLeak{sql=" + sql + '}';
+    }
+}
@@ -0,0 +1,23 @@
+package com.github.witoldsz.ultm;
+
+/**
+ * Where transaction manager keeps the state of transactions.
+ *
+ * @author witoldsz
+ * @see ULTM#setTxContextStorage(TxContextStorage)
+ */
+public enum TxContextStorage {
+
+    /**
+     * Each thread gets its own context on first transaction and keeps reusing it, so transactions allocate nothing.
+     * That is the default and the best fit for pools of long living platform threads.
+     */
+    PER_THREAD,
+
+    /**
+     * Each transaction gets a new context, bound to the thread only until transaction ends, so nothing is left
+     * behind in threads which are not running transactions. That is the fit for (millions of) short living
+     * virtual threads, where reuse does not pay off anyway.
+     */
+    PER_TRANSACTION
+}
@@ -0,0 +1,9 @@
+package com.github.witoldsz.ultm;
+
+/**
+ * Transaction on its way from one thread to another, see {@link TxManager#handOff()}.
+ *
+ * @author witoldsz
+ */
+public interface TxHandoff {
+}
@@ -1,5 +1,12 @@
 package com.github.witoldsz.ultm;
 
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
 /**
  *
  * @author witoldsz
@@ -81,8 +88,238 @@ public interface TxManager {
      */
     void tx(UnitOfWork unit);
 
+    /**
+     * It does same thing as {@link #txResult(UnitOfWorkCall)} but within transaction with a deadline,
+     * see {@link #begin(Duration)}.
+     *
+     * @param <T> type of result
+     * @param timeout time the transaction can take
+     * @param unit unit-of-work
+     * @return result of unit-of-work
+     * @throws UnitOfWorkException same as in {@link #txResult(UnitOfWorkCall)}, also when transaction timed out
+     */
+    <T> T txResult(Duration timeout, UnitOfWorkCall<T> unit);
+
+    /**
+     * It does same thing as {@link #txResult(Duration, UnitOfWorkCall)} but does not return any result.
+     *
+     * @param timeout time the transaction can take
+     * @param unit unit-of-work
+     * @throws UnitOfWorkException same as in {@link #tx(UnitOfWork)}, also when transaction timed out
+     */
+    void tx(Duration timeout, UnitOfWork unit);
+
+    /**
+     * It does same thing as {@link #txResult(UnitOfWorkCall)} but within transaction with given options,
+     * see {@link #begin(TxOptions)}.
+     *
+     * @param <T> type of result
+     * @param options options of the transaction
+     * @param unit unit-of-work
+     * @return result of unit-of-work
+     * @throws UnitOfWorkException same as in {@link #txResult(UnitOfWorkCall)}
+     */
+    <T> T txResult(TxOptions options, UnitOfWorkCall<T> unit);
+
+    /**
+     * It does same thing as {@link #txResult(TxOptions, UnitOfWorkCall)} but does not return any result.
+     *
+     * @param options options of the transaction
+     * @param unit unit-of-work
+     * @throws UnitOfWorkException same as in {@link #tx(UnitOfWork)}
+     */
+    void tx(TxOptions options, UnitOfWork unit);
+
+    /**
+     * It does same thing as {@link #txResult(UnitOfWorkCall)} when there is no transaction in progress.
+     * Otherwise, depending on propagation, the unit joins the transaction in progress, runs within it but
+     * can be rolled back on its own, or runs in new, separate transaction.
+     *
+     * @param <T> type of result
+     * @param propagation what to do when transaction is in progress already
+     * @param unit unit-of-work
+     * @return result of unit-of-work
+     * @throws UnitOfWorkException same as in {@link #txResult(UnitOfWorkCall)}
+     * @see Propagation
+     */
+    <T> T txResult(Propagation propagation, UnitOfWorkCall<T> unit);
+
+    /**
+     * It does same thing as {@link #txResult(Propagation, UnitOfWorkCall)} but does not return any result.
+     *
+     * @param propagation what to do when transaction is in progress already
+     * @param unit unit-of-work
+     * @throws UnitOfWorkException same as in {@link #tx(UnitOfWork)}
+     */
+    void tx(Propagation propagation, UnitOfWork unit);
+
+    /**
+     * It does same thing as {@link #txResult(UnitOfWorkCall)} but within read-only transaction,
+     * see {@link #beginReadOnly()}.
+     *
+     * @param <T> type of result
+     * @param unit unit-of-work
+     * @return result of unit-of-work
+     * @throws UnitOfWorkException same as in {@link #txResult(UnitOfWorkCall)}
+     * @see #beginReadOnly()
+     */
+    <T> T txReadOnlyResult(UnitOfWorkCall<T> unit);
+
+    /**
+     * It does same thing as {@link #tx(UnitOfWork)} but within read-only transaction,
+     * see {@link #beginReadOnly()}.
+     *
+     * @param unit unit-of-work
+     * @throws UnitOfWorkException same as in {@link #tx(UnitOfWork)}
+     * @see #beginReadOnly()
+     */
+    void txReadOnly(UnitOfWork unit);
+
+    /**
+     * It does same thing as {@link #txResult(UnitOfWorkCall)}, but when unit-of-work (or commit) fails
+     * with an exception considered transient by the policy (by default: serialization failure or deadlock),
+     * the transaction is rolled back and the unit runs again, after a backoff.
+     *
+     * @param <T> type of result
+     * @param policy how many times and on which failures to retry
+     * @param unit unit-of-work, it can run more than once
+     * @return result of unit-of-work
+     * @throws UnitOfWorkException same as in {@link #txResult(UnitOfWorkCall)}, the failure of last attempt
+     * @see RetryPolicy
+     */
+    <T> T txWithRetryResult(RetryPolicy policy, UnitOfWorkCall<T> unit);
+
+    /**
+     * It does same thing as {@link #txWithRetryResult(RetryPolicy, UnitOfWorkCall)} but does not return any result.
+     *
+     * @param policy how many times and on which failures to retry
+     * @param unit unit-of-work, it can run more than once
+     * @throws UnitOfWorkException same as in {@link #tx(UnitOfWork)}, the failure of last attempt
+     */
+    void txWithRetry(RetryPolicy policy, UnitOfWork unit);
+
+    /**
+     * Runs query within read-only transaction of its own (see {@link #beginReadOnly()}) which lasts until the
+     * returned stream is closed, so rows are read as the stream gets consumed, rather than all at once. Result set
+     * is forward-only and fetched in chunks, see {@link ULTM#setStreamFetchSize(int)}. Closing the stream commits
+     * the transaction, or rolls it back if reading rows failed. Transaction of current thread (if any) is not
+     * affected and thread can run other transactions while the stream is open.
+     * <pre>
+     *  try (Stream&lt;Person&gt; persons = txManager.txStream("select * from PERSONS", Person::fromRow)) {
+     *      persons.forEach(exporter::write);
+     *  }
+     * </pre>
+     *
+     * @param <T> type of stream element
+     * @param sql query
+     * @param rowMapper maps current row of result set to the stream element
+     * @param parameters parameters of query, see {@link java.sql.PreparedStatement#setObject(int, Object)}
+     * @return stream of rows, it must be closed
+     * @throws UnitOfWorkException wraps SQLException from running the query, from reading the rows as stream
+     * gets consumed, or from closing it
+     */
+    <T> Stream<T> txStream(String sql, RowMapper<T> rowMapper, Object... parameters);
+
+    /**
+     * Runs independent units concurrently, each within read-only transaction of its own (see
+     * {@link #beginReadOnly()}) and so on its own connection. At most {@link ULTM#setMaxParallelism(int)} units run
+     * at once, one of them on current thread and the others on {@link ULTM#setParallelExecutor(Executor)}.
+     * Once a unit fails, units not started yet are skipped and the ones still running get rolled back when they end.
+     * Transaction of current thread (if any) is not affected.
+     *
+     * @param <T> type of results
+     * @param units units-of-work, independent of each other
+     * @return results of units-of-work, in order of units
+     * @throws UnitOfWorkException same as in {@link #txResult(UnitOfWorkCall)}, the failure of first unit which failed
+     */
+    <T> List<T> txParallel(List<UnitOfWorkCall<T>> units);
+
     void setAfterRollbackListener(Runnable listener);
 
+    /**
+     * Makes task join the transaction of current thread, no matter which thread runs it later,
+     * e.g. a subtask forked by the unit-of-work. Transaction's connection is acquired right away (if it was not
+     * yet), so that all the tasks share it. Only the thread which began the transaction can finish it and it
+     * should wait for the tasks to complete before doing so.
+     *
+     * @param task task to run within transaction
+     * @return task binding the transaction to the thread running it, for the time it runs
+     * @throws IllegalStateException when no transaction is in progress.
+     */
+    Runnable propagate(Runnable task);
+
+    /**
+     * Same as {@link #propagate(Runnable)}, but for tasks with result.
+     *
+     * @param <T> type of result
+     * @param task task to run within transaction
+     * @return task binding the transaction to the thread running it, for the time it runs
+     * @throws IllegalStateException when no transaction is in progress.
+     */
+    <T> Callable<T> propagate(Callable<T> task);
+
+    /**
+     * Unbinds transaction from current thread, so that other thread can take it over and finish it, e.g. when
+     * transaction begun by request thread is committed by the one sending the response. Pending batch is executed
+     * first. Current thread can begin another transaction right away.
+     *
+     * @return transaction to be taken over, once
+     * @throws IllegalStateException when no transaction is in progress or it belongs to other thread.
+     * @see #takeOver(TxHandoff)
+     */
+    TxHandoff handOff();
+
+    /**
+     * Binds transaction handed off by other thread to current thread, which becomes its owner, so it is the one
+     * to commit or rollback.
+     *
+     * @param handoff transaction handed off
+     * @throws IllegalStateException when transaction is in progress already, or the handoff has been taken over.
+     * @see #handOff()
+     */
+    void takeOver(TxHandoff handoff);
+
+    /**
+     * Registers callback to run right before transaction of current thread commits, when it can still use the
+     * database. If callback fails, transaction is rolled back and commit throws.
+     * Must be called from the thread of the transaction.
+     * @param callback callback
+     * @throws IllegalStateException when no transaction is in progress.
+     */
+    void onBeforeCommit(UnitOfWork callback);
+
+    /**
+     * Registers callback to run once transaction of current thread has committed and its connection has been
+     * released. Callbacks run on the committing thread, after commit, unless there is an executor for them,
+     * see {@link ULTM#setAfterCommitExecutor}. If one of them fails, the others run anyway and commit throws
+     * the failure, but the transaction stays committed.
+     * Must be called from the thread of the transaction.
+     * @param callback callback
+     * @throws IllegalStateException when no transaction is in progress.
+     */
+    void onAfterCommit(Runnable callback);
+
+    /**
+     * Registers callback to run once transaction of current thread has been rolled back (or failed to commit)
+     * and its connection has been released. It runs before the listener of {@link #setAfterRollbackListener}.
+     * Must be called from the thread of the transaction.
+     * @param callback callback
+     * @throws IllegalStateException when no transaction is in progress.
+     */
+    void onAfterRollback(Runnable callback);
+
+    /**
+     * Gives access to objects bound to transaction of current thread, e.g. things to do at commit time,
+     * see {@link #onBeforeCommit(UnitOfWork)}. They are forgotten when transaction ends.
+     * Must be called from the thread of the transaction.
+     * @param <T> type of resource
+     * @param key key of resource, compared by identity
+     * @param factory creates the resource, when it is not bound yet
+     * @return resource bound to transaction
+     * @throws IllegalStateException when no transaction is in progress.
+     */
+    <T> T getTxResource(Object key, Supplier<T> factory);
+
     /**
      * Begins a transaction.
      * @throws IllegalStateException when transaction is already in progress.
@@ -90,8 +327,39 @@ public interface TxManager {
     void begin();
 
     /**
-     * Commits a transaction.
-     * @throws IllegalStateException when no transaction is in progress.
+     * Begins a read-only transaction. Its connection comes from one of the replicas (if there are any,
+     * otherwise from the primary data source) and has {@link java.sql.Connection#setReadOnly(boolean)} applied.
+     * @throws IllegalStateException when transaction is already in progress.
+     * @see ReplicaSelector
+     */
+    void beginReadOnly();
+
+    /**
+     * Begins a transaction which must end within given time. Every statement gets query timeout set to the
+     * time left and so does the connection's network timeout, if driver supports it (it is restored when
+     * transaction ends). Once deadline is exceeded, transaction which has acquired its connection is aborted
+     * right away (its work rolled back and connection let go), so statements cannot be created anymore
+     * and commit fails.
+     * @param timeout time the transaction can take
+     * @throws IllegalStateException when transaction is already in progress.
+     * @throws IllegalArgumentException when timeout is not positive.
+     */
+    void begin(Duration timeout);
+
+    /**
+     * Begins a transaction with given options. Isolation level is applied when connection is acquired (unless it
+     * is the connection's level already) and the original one is restored before connection is released.
+     * @param options options of the transaction
+     * @throws IllegalStateException when transaction is already in progress.
+     * @see #beginReadOnly()
+     * @see #begin(Duration)
+     */
+    void begin(TxOptions options);
+
+    /**
+     * Commits a transaction. Transaction is over when it returns, no matter if it succeeded or not.
+     * @throws IllegalStateException when no transaction is in progress or when it was marked rollback-only,
+     * see {@link Propagation#REQUIRED}, in which case it is rolled back.
      */
     void commit();
 
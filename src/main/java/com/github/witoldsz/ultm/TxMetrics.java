@@ -0,0 +1,40 @@
+package com.github.witoldsz.ultm;
+
+/**
+ * Listener of transaction timings, see {@link com.github.witoldsz.ultm.metrics.HistogramTxMetrics} for
+ * the ready to use one. It is called synchronously by the threads running transactions, so implementations
+ * must be thread safe and fast. All the times are in nanoseconds.
+ * <p>
+ * Every {@link #begun()} is followed by exactly one of: {@link #committed(long, long)},
+ * {@link #rolledBack(long, long)} or {@link #finishedWithoutConnection(long)}.
+ *
+ * @author witoldsz
+ * @see ULTM#setTxMetrics(TxMetrics)
+ */
+public interface TxMetrics {
+
+    default void begun() {}
+
+    /**
+     * @param nanos time spent waiting for the (raw) data source to return a connection
+     */
+    default void connectionAcquired(long nanos) {}
+
+    /**
+     * @param unitNanos time from begin to commit, that is the time of unit-of-work
+     * @param commitNanos time of commit and releasing the connection
+     */
+    default void committed(long unitNanos, long commitNanos) {}
+
+    /**
+     * @param unitNanos time from begin to rollback, that is the time of unit-of-work
+     * @param rollbackNanos time of rollback and releasing the connection
+     */
+    default void rolledBack(long unitNanos, long rollbackNanos) {}
+
+    /**
+     * Transaction was finished (committed or rolled back) without ever touching the database.
+     * @param unitNanos time from begin to commit or rollback
+     */
+    default void finishedWithoutConnection(long unitNanos) {}
+}
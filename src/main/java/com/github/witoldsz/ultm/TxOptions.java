@@ -0,0 +1,115 @@
+package com.github.witoldsz.ultm;
+
+import java.time.Duration;
+
+/**
+ * Settings of a single transaction, see {@link TxManager#begin(TxOptions)}. Connection tuner given to {@link ULTM}
+ * applies to every transaction, these apply only to the one they are passed to and connection gets its original
+ * settings back before it is released.
+ * <p>
+ * Instances are immutable, each {@code with...} method returns a new one.
+ *
+ * @author witoldsz
+ */
+public final class TxOptions {
+
+    private static final TxOptions DEFAULTS = new TxOptions(-1, false, null, null, false);
+
+    private final int isolation;
+    private final boolean readOnly;
+    private final Duration timeout;
+    private final String label;
+    private final boolean prefetch;
+
+    private TxOptions(int isolation, boolean readOnly, Duration timeout, String label, boolean prefetch) {
+        this.isolation = isolation;
+        this.readOnly = readOnly;
+        this.timeout = timeout;
+        this.label = label;
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * @return options of a plain {@link TxManager#begin()} transaction
+     */
+    public static TxOptions defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * @param level one of the {@code Connection.TRANSACTION_*} constants
+     * @return new options
+     */
+    public TxOptions withIsolation(int level) {
+        if (level < 0) throw new IllegalArgumentException("Isolation level must not be negative.");
+        return new TxOptions(level, readOnly, timeout, label, prefetch);
+    }
+
+    /**
+     * @param readOnly see {@link TxManager#beginReadOnly()}
+     * @return new options
+     */
+    public TxOptions withReadOnly(boolean readOnly) {
+        return new TxOptions(isolation, readOnly, timeout, label, prefetch);
+    }
+
+    /**
+     * @param timeout see {@link TxManager#begin(Duration)}, {@code null} for none
+     * @return new options
+     */
+    public TxOptions withTimeout(Duration timeout) {
+        if (timeout != null && (timeout.isNegative() || timeout.isZero())) {
+            throw new IllegalArgumentException("Timeout must be positive.");
+        }
+        return new TxOptions(isolation, readOnly, timeout, label, prefetch);
+    }
+
+    /**
+     * @param label name of the transaction, reported by {@link TxWatchdog}
+     * @return new options
+     */
+    public TxOptions withLabel(String label) {
+        return new TxOptions(isolation, readOnly, timeout, label, prefetch);
+    }
+
+    /**
+     * Connection is acquired lazily, when unit-of-work needs it for the first time, which puts the wait for
+     * connection pool in the middle of it. Prefetch starts acquiring the connection in background right at the
+     * beginning instead, so that unit doing some work before its first query does not have to wait that long.
+     * Connection is released when it turns out not to be needed. See {@link ULTM#setPrefetchExecutor}.
+     * @param prefetch {@code true} to acquire connection at the beginning of transaction
+     * @return new options
+     */
+    public TxOptions withPrefetch(boolean prefetch) {
+        return new TxOptions(isolation, readOnly, timeout, label, prefetch);
+    }
+
+    /**
+     * @return isolation level, -1 if connection's own one should be used
+     */
+    public int getIsolation() {
+        return isolation;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return timeout, {@code null} if none
+     */
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return label, {@code null} if none
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    public boolean isPrefetch() {
+        return prefetch;
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.witoldsz.ultm;
+
+/**
+ * Keeps an eye on connections held by transactions and reports the ones held for too long, which is what
+ * starves the connection pool, e.g. when unit-of-work makes remote calls in the middle of transaction.
+ *
+ * @author witoldsz
+ * @see ULTM#startWatchdog(java.time.Duration, java.time.Duration, int, java.util.function.Consumer)
+ */
+public interface TxWatchdog extends AutoCloseable {
+
+    /**
+     * Stops watching, transactions are no longer tracked.
+     */
+    @Override
+    void close();
+}
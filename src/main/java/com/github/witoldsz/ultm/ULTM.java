@@ -1,8 +1,15 @@
 package com.github.witoldsz.ultm;
 
 import java.sql.Connection;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
+import com.github.witoldsz.ultm.internal.ConnectionWatchdog;
+import com.github.witoldsz.ultm.internal.ExecutorAsyncTxManager;
 import com.github.witoldsz.ultm.internal.ManagedDataSource;
+import com.github.witoldsz.ultm.internal.QueueGroupCommitter;
 import com.github.witoldsz.ultm.internal.ThreadLocalTxManager;
 import javax.sql.DataSource;
 
@@ -26,6 +33,205 @@ public class ULTM {
         managedDataSource = new ManagedDataSource(rawDataSource, threadLocalTxManager);
     }
 
+    /**
+     * Read-only transactions get their connections from replicas, chosen by {@link ReplicaSelector#roundRobin()}.
+     * @param primaryDataSource data source for read-write transactions
+     * @param replicaDataSources data sources for read-only transactions
+     * @see TxManager#beginReadOnly()
+     */
+    public ULTM(DataSource primaryDataSource, List<DataSource> replicaDataSources) {
+        this(primaryDataSource, replicaDataSources, ReplicaSelector.roundRobin(), c -> {});
+    }
+
+    public ULTM(DataSource primaryDataSource, List<DataSource> replicaDataSources, ReplicaSelector replicaSelector) {
+        this(primaryDataSource, replicaDataSources, replicaSelector, c -> {});
+    }
+
+    public ULTM(DataSource primaryDataSource, List<DataSource> replicaDataSources, ReplicaSelector replicaSelector,
+            Consumer<Connection> connectionTuner) {
+        threadLocalTxManager = new ThreadLocalTxManager(
+            primaryDataSource, replicaDataSources, replicaSelector, connectionTuner);
+        managedDataSource = new ManagedDataSource(primaryDataSource, threadLocalTxManager);
+    }
+
+    /**
+     * @param finish how to finish transactions which executed nothing but queries, {@link UnmodifiedTxFinish#COMMIT}
+     * by default
+     */
+    public void setUnmodifiedTxFinish(UnmodifiedTxFinish finish) {
+        threadLocalTxManager.setUnmodifiedTxFinish(finish);
+    }
+
+    /**
+     * Statements run by {@code executeUpdate} or batches and stored procedure calls always count as modifying data.
+     * But {@code execute} could do anything and so could {@code executeQuery} (e.g. {@code INSERT ... RETURNING} or
+     * function modifying data), so by default they count as modifying too. Only a classifier knowing the SQL of the
+     * application can tell the queries apart, e.g. telling that every statement starting with {@code select}
+     * leaves data alone.
+     * @param classifier tells if given SQL run by {@code execute} or {@code executeQuery} could modify data,
+     * {@code null} for the default
+     * @see #setUnmodifiedTxFinish(UnmodifiedTxFinish)
+     */
+    public void setModifyingSqlClassifier(Predicate<String> classifier) {
+        threadLocalTxManager.setModifyingSqlClassifier(classifier);
+    }
+
+    /**
+     * Closing prepared statement within transaction can put it aside to be returned by next
+     * {@code prepareStatement} with same SQL and flags, instead of preparing it once again.
+     * Such statements are closed for real when transaction ends.
+     * @param size maximum number of idle statements per transaction, 0 (the default) disables the cache
+     */
+    public void setStatementCacheSize(int size) {
+        threadLocalTxManager.setStatementCacheSize(size);
+    }
+
+    /**
+     * Makes {@code executeUpdate()} of prepared statements add them to batch instead, as long as the same statement
+     * keeps being executed. The batch is executed when it reaches given size, before anything else gets executed,
+     * when statement is really closed (rather than put into statement cache) and before commit.
+     * <p>
+     * Batched {@code executeUpdate()} returns {@link java.sql.Statement#SUCCESS_NO_INFO} instead of real update
+     * count and errors are reported by whatever executes the batch, so enable it only for code which does not
+     * depend on update counts. Statements prepared with generated keys requested are never batched. It works best
+     * with {@link #setStatementCacheSize(int)}, so code preparing the statement again and again keeps getting
+     * the same one.
+     * @param size maximum number of updates in a batch, 0 (the default) disables batching
+     */
+    public void setMaxBatchSize(int size) {
+        threadLocalTxManager.setMaxBatchSize(size);
+    }
+
+    /**
+     * Drivers tend to read the whole result set at once unless told otherwise, MySQL's one needs
+     * {@link Integer#MIN_VALUE} to stream rows instead.
+     * @param fetchSize fetch size of result sets of {@link TxManager#txStream(String, RowMapper, Object...)},
+     * 1000 by default
+     */
+    public void setStreamFetchSize(int fetchSize) {
+        threadLocalTxManager.setStreamFetchSize(fetchSize);
+    }
+
+    /**
+     * @param maxParallelism maximum number of units of {@link TxManager#txParallel(List)} running at once (and so
+     * connections taken by a single call), 4 by default. Calls running at the same time share the executor,
+     * see {@link #setParallelExecutor(Executor)}
+     */
+    public void setMaxParallelism(int maxParallelism) {
+        threadLocalTxManager.setMaxParallelism(maxParallelism);
+    }
+
+    /**
+     * Executor bounds the number of threads (and connections) taken by all the calls together. Units it rejects
+     * are run by the threads of the call which are running already, at least the calling one.
+     * @param executor runs units of {@link TxManager#txParallel(List)} other than the one running on calling thread,
+     * {@code null} (the default) for a pool of daemon threads, one per processor
+     */
+    public void setParallelExecutor(Executor executor) {
+        threadLocalTxManager.setParallelExecutor(executor);
+    }
+
+    /**
+     * Every acquired connection is checked with {@link Connection#getAutoCommit()}, which for some drivers
+     * is a round-trip to the database. Disable the check if connection pool guarantees auto-commit is off.
+     * @param check {@code true} by default, unless all the data sources are
+     * {@link com.github.witoldsz.ultm.pool.ConnectionPool}s
+     */
+    public void setAutoCommitCheck(boolean check) {
+        threadLocalTxManager.setAutoCommitCheck(check);
+    }
+
+    /**
+     * Lets threads keep their connection after transaction, for the next one, instead of giving it back to the
+     * pool and checking it out again, which pays off when thread runs short transactions one after another.
+     * Connections not reused within idle window are closed (i.e. go back to the pool) by a background thread.
+     * Connections of read-only replicas are never kept. It has no effect with {@link TxContextStorage#PER_TRANSACTION}.
+     * Must be set before transaction manager is used.
+     * @param idleWindow how long connection can wait for the next transaction, zero (the default) disables pinning
+     * @param maxPinned maximum number of connections kept by all the threads together, keep it well below the size
+     * of the pool, so that threads not running transactions right now cannot starve the others
+     */
+    public void setConnectionPinning(Duration idleWindow, int maxPinned) {
+        threadLocalTxManager.setConnectionPinning(idleWindow, maxPinned);
+    }
+
+    /**
+     * Transaction which finds executor busy (or rejecting it otherwise) acquires connection when it needs it,
+     * as if there was no prefetch at all.
+     * @param executor runs acquisition of connections prefetched at the beginning of transactions, see
+     * {@link TxOptions#withPrefetch(boolean)}, {@code null} (the default) for a pool of daemon threads,
+     * one per processor
+     */
+    public void setPrefetchExecutor(Executor executor) {
+        threadLocalTxManager.setPrefetchExecutor(executor);
+    }
+
+    /**
+     * After-commit callbacks of transaction go to the executor as a single task, so that the committing thread
+     * can move on. If executor rejects the task, callbacks run on the committing thread.
+     * @param executor runs callbacks of {@link TxManager#onAfterCommit(Runnable)}, {@code null} (the default)
+     * to run them on the committing thread
+     */
+    public void setAfterCommitExecutor(Executor executor) {
+        threadLocalTxManager.setAfterCommitExecutor(executor);
+    }
+
+    /**
+     * Statements (and so their result sets) left open by a transaction are closed when it ends and reported to the
+     * listener. Capturing stack traces costs a {@link Throwable} per statement, so it is meant for hunting leaks
+     * down rather than for production.
+     * @param listener gets statements left open by transactions, {@code null} (the default) to stop tracking them
+     * @param captureStackTraces if {@link StatementLeak#getOpenedAt()} should tell where statement was opened
+     */
+    public void setStatementLeakListener(Consumer<StatementLeak> listener, boolean captureStackTraces) {
+        threadLocalTxManager.setStatementLeakListener(listener, captureStackTraces);
+    }
+
+    /**
+     * Must be set before transaction manager is used, {@link TxContextStorage#PER_THREAD} by default.
+     * @param storage where transaction manager keeps the state of transactions
+     */
+    public void setTxContextStorage(TxContextStorage storage) {
+        threadLocalTxManager.setTxContextStorage(storage);
+    }
+
+    /**
+     * @param metrics listener of transaction timings, {@code null} (the default) disables timing altogether
+     * @see com.github.witoldsz.ultm.metrics.HistogramTxMetrics
+     */
+    public void setTxMetrics(TxMetrics metrics) {
+        threadLocalTxManager.setTxMetrics(metrics);
+    }
+
+    /**
+     * Same as {@link #startWatchdog(Duration, Duration, int, Consumer)}, scanning four times per threshold and
+     * capturing no stack traces.
+     * @param threshold how long connection can be held before it is reported
+     * @param listener receives long-held connections
+     * @return running watchdog, close it to stop watching
+     */
+    public TxWatchdog startWatchdog(Duration threshold, Consumer<HeldConnection> listener) {
+        return startWatchdog(threshold, threshold.dividedBy(4), 0, listener);
+    }
+
+    /**
+     * Starts tracking every connection acquired by transactions. Those held for longer than the threshold are
+     * reported once, on watchdog's own daemon thread. Tracking is cheap enough to be left on in production,
+     * unlike capturing stack traces, hence the sampling. Watchdog started before gets replaced and closed.
+     * @param threshold how long connection can be held before it is reported
+     * @param scanInterval how often the connections are checked
+     * @param stackTraceSampling capture stack trace at {@link TxManager#begin()} of every n-th transaction,
+     * 1 for all, 0 for none
+     * @param listener receives long-held connections, see {@link HeldConnection#getBeginTrace()}
+     * @return running watchdog, close it to stop watching
+     */
+    public TxWatchdog startWatchdog(Duration threshold, Duration scanInterval, int stackTraceSampling,
+            Consumer<HeldConnection> listener) {
+        ConnectionWatchdog watchdog = new ConnectionWatchdog(threshold, scanInterval, stackTraceSampling, listener);
+        threadLocalTxManager.setWatchdog(watchdog);
+        return () -> threadLocalTxManager.removeWatchdog(watchdog);
+    }
+
     public DataSource getManagedDataSource() {
         return managedDataSource;
     }
@@ -33,4 +239,23 @@ public class ULTM {
     public TxManager getTxManager() {
         return threadLocalTxManager;
     }
+
+    /**
+     * @param threads number of threads running transactions, usually same as the size of connection pool
+     * @param queueCapacity how many units can wait for a thread before new ones get rejected
+     * @return new asynchronous transaction manager, close it when no longer needed
+     */
+    public AsyncTxManager createAsyncTxManager(int threads, int queueCapacity) {
+        return new ExecutorAsyncTxManager(threadLocalTxManager, threads, queueCapacity);
+    }
+
+    /**
+     * @param maxGroupSize maximum number of units committed together
+     * @param queueCapacity how many units can wait for their group before new ones get rejected
+     * @return new group committer, close it when no longer needed
+     * @see GroupCommitter
+     */
+    public GroupCommitter createGroupCommitter(int maxGroupSize, int queueCapacity) {
+        return new QueueGroupCommitter(threadLocalTxManager, maxGroupSize, queueCapacity);
+    }
 }
@@ -0,0 +1,24 @@
+package com.github.witoldsz.ultm;
+
+/**
+ * How to finish a transaction which is being committed, but executed nothing that could modify data.
+ *
+ * @author witoldsz
+ * @see ULTM#setUnmodifiedTxFinish(UnmodifiedTxFinish)
+ * @see ULTM#setModifyingSqlClassifier(java.util.function.Predicate)
+ */
+public enum UnmodifiedTxFinish {
+
+    /**
+     * Commit anyway, that is what JDBC driver and database expect and it is the default.
+     */
+    COMMIT,
+
+    /**
+     * Roll back instead. Result is the same, but databases usually do not have to flush their logs then
+     * and drivers tracking the transaction state locally skip the round-trip entirely.
+     * After rollback listener is not notified, as far as the caller is concerned, transaction was committed.
+     * It takes a classifier to recognize queries, see {@link ULTM#setModifyingSqlClassifier(java.util.function.Predicate)}.
+     */
+    ROLLBACK
+}
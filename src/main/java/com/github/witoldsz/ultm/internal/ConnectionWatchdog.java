@@ -0,0 +1,151 @@
+package com.github.witoldsz.ultm.internal;
+
+import com.github.witoldsz.ultm.HeldConnection;
+import com.github.witoldsz.ultm.TxWatchdog;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Registry of transactions holding connections, split into stripes so that threads acquiring and releasing
+ * connections rarely contend with each other. Neither registering nor unregistering allocates anything.
+ * Each connection is reported once, when scanner finds it held for longer than the threshold.
+ *
+ * @author witoldsz
+ */
+public class ConnectionWatchdog implements TxWatchdog {
+
+    private static final String INTERNAL_PACKAGE = ConnectionWatchdog.class.getPackage().getName() + ".";
+
+    private final Stripe[] stripes;
+    private final long thresholdNanos;
+    private final int stackTraceSampling;
+    private final AtomicLong begun = new AtomicLong();
+    private final Consumer<HeldConnection> listener;
+    private final ScheduledThreadPoolExecutor scanner;
+
+    /**
+     * @param threshold how long connection can be held before it is reported
+     * @param scanInterval how often the registry is scanned
+     * @param stackTraceSampling capture stack trace of every n-th {@code begin()}, 0 to never capture it
+     * @param listener receives long-held connections on the scanner thread
+     */
+    public ConnectionWatchdog(Duration threshold, Duration scanInterval, int stackTraceSampling,
+            Consumer<HeldConnection> listener) {
+        if (stackTraceSampling < 0) {
+            throw new IllegalArgumentException("Stack trace sampling must not be negative.");
+        }
+        int size = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; ++i) {
+            stripes[i] = new Stripe();
+        }
+        this.thresholdNanos = threshold.toNanos();
+        this.stackTraceSampling = stackTraceSampling;
+        this.listener = listener;
+        this.scanner = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "ultm-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = scanInterval.toNanos();
+        scanner.scheduleWithFixedDelay(this::scan, interval, interval, NANOSECONDS);
+    }
+
+    /**
+     * @return stack trace of the caller (frames of transaction manager skipped) if it is the n-th one,
+     * {@code null} otherwise
+     */
+    Throwable sampleBeginTrace() {
+        if (stackTraceSampling == 0 || begun.getAndIncrement() % stackTraceSampling != 0) {
+            return null;
+        }
+        Throwable trace = new Throwable("Transaction began here");
+        StackTraceElement[] frames = trace.getStackTrace();
+        int skip = 0;
+        while (skip < frames.length - 1 && frames[skip].getClassName().startsWith(INTERNAL_PACKAGE)) {
+            ++skip;
+        }
+        trace.setStackTrace(Arrays.copyOfRange(frames, skip, frames.length));
+        return trace;
+    }
+
+    void register(TxContext ctx) {
+        int index = (int) Thread.currentThread().getId() & (stripes.length - 1);
+        Stripe stripe = stripes[index];
+        synchronized (stripe) {
+            ctx.acquiredAt = System.nanoTime();
+            ctx.holder = Thread.currentThread();
+            ctx.reported = false;
+            ctx.watchdogStripe = index;
+            stripe.contexts.add(ctx);
+        }
+    }
+
+    /**
+     * Transaction has been taken over by current thread, it stays in the stripe of the thread which registered it.
+     */
+    void transfer(TxContext ctx) {
+        if (ctx.watchdogStripe < 0) return;
+        synchronized (stripes[ctx.watchdogStripe]) {
+            ctx.holder = Thread.currentThread();
+        }
+    }
+
+    void unregister(TxContext ctx) {
+        if (ctx.watchdogStripe < 0) return;
+        Stripe stripe = stripes[ctx.watchdogStripe];
+        synchronized (stripe) {
+            stripe.contexts.remove(ctx);
+            ctx.holder = null;
+            ctx.watchdogStripe = -1;
+        }
+    }
+
+    /**
+     * Listener is called outside of the locks, so that slow listener does not block transactions.
+     */
+    void scan() {
+        long now = System.nanoTime();
+        List<HeldConnection> found = null;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (TxContext ctx : stripe.contexts) {
+                    long heldFor = now - ctx.acquiredAt;
+                    if (!ctx.reported && heldFor > thresholdNanos) {
+                        ctx.reported = true;
+                        if (found == null) found = new ArrayList<>();
+                        long state = ctx.getState();
+                        found.add(new HeldConnection(ctx.holder, ctx.label, Duration.ofNanos(heldFor), ctx.beginTrace,
+                            () -> ctx.abort(state)));
+                    }
+                }
+            }
+        }
+        if (found == null) return;
+        for (HeldConnection held : found) {
+            try {
+                listener.accept(held);
+            } catch (RuntimeException ex) {
+                // must not stop the scanner
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        scanner.shutdownNow();
+    }
+
+    private static class Stripe {
+        final Set<TxContext> contexts = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+}
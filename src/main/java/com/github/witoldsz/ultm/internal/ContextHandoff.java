@@ -0,0 +1,25 @@
+package com.github.witoldsz.ultm.internal;
+
+import com.github.witoldsz.ultm.TxHandoff;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds context of transaction until some thread takes it over.
+ *
+ * @author witoldsz
+ */
+final class ContextHandoff implements TxHandoff {
+
+    private final AtomicReference<TxContext> ctx;
+
+    ContextHandoff(TxContext ctx) {
+        this.ctx = new AtomicReference<>(ctx);
+    }
+
+    /**
+     * @return context of transaction, or {@code null} if it has been taken already
+     */
+    TxContext take() {
+        return ctx.getAndSet(null);
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.witoldsz.ultm.internal;
+
+import com.github.witoldsz.ultm.AsyncTxManager;
+import com.github.witoldsz.ultm.TxManager;
+import com.github.witoldsz.ultm.UnitOfWorkCall;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ *
+ * @author witoldsz
+ */
+public class ExecutorAsyncTxManager implements AsyncTxManager {
+
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+    private final TxManager txManager;
+    private final ThreadPoolExecutor executor;
+
+    public ExecutorAsyncTxManager(TxManager txManager, int threads, int queueCapacity) {
+        this.txManager = txManager;
+        String namePrefix = "ultm-async-" + POOL_NUMBER.incrementAndGet() + "-";
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            r -> {
+                Thread t = new Thread(r, namePrefix + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+    }
+
+    @Override
+    public <T> CompletableFuture<T> txAsync(UnitOfWorkCall<T> unit) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(txManager.txUnwrappedResult(unit));
+                } catch (Throwable ex) {
+                    result.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.github.witoldsz.ultm.internal;
+
+import com.github.witoldsz.ultm.ReplicaSelector;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Picks the replica with the fewest connections currently handed out. Ties are broken by starting
+ * the scan at a random replica, so a lightly loaded cluster does not send everything to the first one.
+ *
+ * @author witoldsz
+ */
+public class LeastInFlightReplicaSelector implements ReplicaSelector {
+
+    private volatile AtomicIntegerArray inFlight;
+
+    @Override
+    public int acquire(int replicas) {
+        AtomicIntegerArray counts = inFlight(replicas);
+        int start = ThreadLocalRandom.current().nextInt(replicas);
+        int best = start;
+        int bestCount = Integer.MAX_VALUE;
+        for (int i = 0; i < replicas; ++i) {
+            int replica = (start + i) % replicas;
+            int count = counts.get(replica);
+            if (count < bestCount) {
+                best = replica;
+                bestCount = count;
+            }
+        }
+        counts.incrementAndGet(best);
+        return best;
+    }
+
+    @Override
+    public void release(int replica) {
+        inFlight.decrementAndGet(replica);
+    }
+
+    private AtomicIntegerArray inFlight(int replicas) {
+        AtomicIntegerArray counts = inFlight;
+        if (counts == null) {
+            synchronized (this) {
+                counts = inFlight;
+                if (counts == null) {
+                    inFlight = counts = new AtomicIntegerArray(replicas);
+                }
+            }
+        }
+        return counts;
+    }
+
+}
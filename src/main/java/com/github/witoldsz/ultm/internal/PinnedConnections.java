@@ -0,0 +1,94 @@
+package com.github.witoldsz.ultm.internal;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Connections kept by threads between transactions, instead of going back to the pool, so that thread running
+ * transaction after transaction does not have to check out a connection every time. Each connection sits in
+ * its context's {@link TxContext#pinned} and whoever takes it out of there first owns it: either the thread,
+ * when it begins next transaction, or the reaper, when connection was idle for too long.
+ *
+ * @author witoldsz
+ */
+class PinnedConnections {
+
+    private final long idleNanos;
+    private final int maxPinned;
+    private final AtomicInteger pinnedCount = new AtomicInteger();
+    private final Set<TxContext> pinnedContexts = ConcurrentHashMap.newKeySet();
+    private final ScheduledThreadPoolExecutor reaper;
+
+    /**
+     * @param idleWindow how long connection can stay pinned
+     * @param maxPinned maximum number of connections pinned at once, all threads together
+     */
+    PinnedConnections(Duration idleWindow, int maxPinned) {
+        this.idleNanos = idleWindow.toNanos();
+        this.maxPinned = maxPinned;
+        this.reaper = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "ultm-pin-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1_000_000, idleNanos / 2);
+        reaper.scheduleWithFixedDelay(this::reap, period, period, NANOSECONDS);
+    }
+
+    /**
+     * @return connection pinned by the thread of given context or {@code null} if there is none
+     */
+    Connection take(TxContext ctx) {
+        Connection pinned = ctx.pinned.getAndSet(null);
+        if (pinned != null) pinnedCount.decrementAndGet();
+        return pinned;
+    }
+
+    /**
+     * @param connection raw connection, finished and with its settings restored
+     * @return {@code true} if connection got pinned, {@code false} if it must be closed
+     */
+    boolean pin(TxContext ctx, Connection connection) {
+        int count;
+        do {
+            count = pinnedCount.get();
+            if (count >= maxPinned) return false;
+        } while (!pinnedCount.compareAndSet(count, count + 1));
+        ctx.pinnedAt = System.nanoTime();
+        ctx.pinned.set(connection);
+        pinnedContexts.add(ctx);
+        return true;
+    }
+
+    /**
+     * Contexts are forgotten once they have nothing pinned, but context can get pinned again concurrently,
+     * hence the second look.
+     */
+    void reap() {
+        long now = System.nanoTime();
+        for (TxContext ctx : pinnedContexts) {
+            Connection pinned = ctx.pinned.get();
+            if (pinned == null) {
+                pinnedContexts.remove(ctx);
+                if (ctx.pinned.get() != null) pinnedContexts.add(ctx);
+            } else if (now - ctx.pinnedAt > idleNanos && ctx.pinned.compareAndSet(pinned, null)) {
+                pinnedCount.decrementAndGet();
+                try {
+                    pinned.close();
+                } catch (SQLException | RuntimeException ex) {
+                    // it is gone anyway
+                }
+            }
+        }
+    }
+
+    int getPinnedCount() {
+        return pinnedCount.get();
+    }
+}
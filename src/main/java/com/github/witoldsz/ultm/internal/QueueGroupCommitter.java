@@ -0,0 +1,137 @@
+package com.github.witoldsz.ultm.internal;
+
+import com.github.witoldsz.ultm.GroupCommitter;
+import com.github.witoldsz.ultm.Propagation;
+import com.github.witoldsz.ultm.TxManager;
+import com.github.witoldsz.ultm.UnitOfWork;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Committer thread takes whatever is queued (up to the group size) as one group, so groups grow with the load
+ * and there is no waiting for a group to fill up.
+ *
+ * @author witoldsz
+ */
+public class QueueGroupCommitter implements GroupCommitter {
+
+    private static final AtomicInteger COMMITTER_NUMBER = new AtomicInteger();
+
+    private final TxManager txManager;
+    private final int maxGroupSize;
+    private final BlockingQueue<Submitted> queue;
+    private final Thread committer;
+    private volatile boolean closed;
+
+    public QueueGroupCommitter(TxManager txManager, int maxGroupSize, int queueCapacity) {
+        if (maxGroupSize < 1) throw new IllegalArgumentException("Group size must be positive.");
+        this.txManager = txManager;
+        this.maxGroupSize = maxGroupSize;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.committer = new Thread(this::run, "ultm-group-commit-" + COMMITTER_NUMBER.incrementAndGet());
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Committer can quit right before the unit gets queued, hence the second look: unit still queued after close
+     * is taken back, unless committer has taken it already.
+     */
+    @Override
+    public CompletableFuture<Void> submit(UnitOfWork unit) {
+        Submitted submitted = new Submitted(unit);
+        if (closed) {
+            submitted.result.completeExceptionally(new RejectedExecutionException("Group committer is closed."));
+        } else if (!queue.offer(submitted)) {
+            submitted.result.completeExceptionally(new RejectedExecutionException("Group commit queue is full."));
+        } else if (closed && queue.remove(submitted)) {
+            submitted.result.completeExceptionally(new RejectedExecutionException("Group committer is closed."));
+        }
+        return submitted.result;
+    }
+
+    private void run() {
+        List<Submitted> group = new ArrayList<>(maxGroupSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Submitted first = queue.poll(100, MILLISECONDS);
+                if (first == null) continue;
+                group.add(first);
+                queue.drainTo(group, maxGroupSize - 1);
+                commit(group);
+            } catch (InterruptedException ex) {
+                return;
+            } catch (Throwable ex) {
+                for (Submitted submitted : group) {
+                    submitted.result.completeExceptionally(ex);
+                }
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    private void commit(List<Submitted> group) {
+        List<Submitted> succeeded = new ArrayList<>(group.size());
+        try {
+            txManager.tx(() -> {
+                for (Submitted submitted : group) {
+                    try {
+                        txManager.tx(Propagation.NESTED, () -> {
+                            try {
+                                submitted.unit.run();
+                            } catch (Error error) {
+                                throw new FailedWithError(error);
+                            }
+                        });
+                        succeeded.add(submitted);
+                    } catch (FailedWithError ex) {
+                        submitted.result.completeExceptionally(ex.getCause());
+                    } catch (RuntimeException ex) {
+                        submitted.result.completeExceptionally(ex);
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            for (Submitted submitted : succeeded) {
+                submitted.result.completeExceptionally(ex);
+            }
+            return;
+        }
+        for (Submitted submitted : succeeded) {
+            submitted.result.complete(null);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Carries error of unit through the nested transaction, so that it gets rolled back like any other failure.
+     */
+    private static class FailedWithError extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        FailedWithError(Error error) {
+            super(error);
+        }
+    }
+
+    private static class Submitted {
+        final UnitOfWork unit;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Submitted(UnitOfWork unit) {
+            this.unit = unit;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.witoldsz.ultm.internal;
+
+import com.github.witoldsz.ultm.RowMapper;
+import com.github.witoldsz.ultm.UnitOfWorkException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * Reads rows of result set one by one, as stream gets consumed.
+ *
+ * @author witoldsz
+ * @param <T> type of mapped row
+ */
+final class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+
+    private final ResultSet resultSet;
+    private final RowMapper<T> rowMapper;
+    private boolean failed;
+
+    ResultSetSpliterator(ResultSet resultSet, RowMapper<T> rowMapper) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED);
+        this.resultSet = resultSet;
+        this.rowMapper = rowMapper;
+    }
+
+    /**
+     * @return {@code true} if reading or mapping a row failed, failure of stream's consumer does not count
+     */
+    boolean isFailed() {
+        return failed;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        T row;
+        try {
+            if (!resultSet.next()) return false;
+            row = rowMapper.map(resultSet);
+        } catch (SQLException ex) {
+            failed = true;
+            throw new UnitOfWorkException(ex);
+        } catch (RuntimeException ex) {
+            failed = true;
+            throw ex;
+        }
+        action.accept(row);
+        return true;
+    }
+}
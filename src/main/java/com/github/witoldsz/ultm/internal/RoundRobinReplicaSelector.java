@@ -0,0 +1,24 @@
+package com.github.witoldsz.ultm.internal;
+
+import com.github.witoldsz.ultm.ReplicaSelector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * @author witoldsz
+ */
+public class RoundRobinReplicaSelector implements ReplicaSelector {
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public int acquire(int replicas) {
+        return (next.getAndIncrement() & Integer.MAX_VALUE) % replicas;
+    }
+
+    @Override
+    public void release(int replica) {
+        // nothing to do
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.github.witoldsz.ultm.internal;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Idle prepared statements of a single transaction, least recently used evicted first.
+ * It is used by one thread only, so there is no synchronization.
+ *
+ * @author witoldsz
+ */
+final class StatementCache {
+
+    private final LinkedHashMap<StatementKey, WrappedPreparedStatement<PreparedStatement>> idle;
+    private final int maxSize;
+
+    StatementCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.idle = new LinkedHashMap<>(maxSize * 2, 0.75f, true);
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    WrappedPreparedStatement<PreparedStatement> take(StatementKey key) {
+        return idle.isEmpty() ? null : idle.remove(key);
+    }
+
+    /**
+     * @return {@code false} when there is an idle statement for the same key already, so this one should be closed
+     */
+    boolean offer(WrappedPreparedStatement<PreparedStatement> statement) throws SQLException {
+        if (idle.containsKey(statement.getKey())) {
+            return false;
+        }
+        if (idle.size() >= maxSize) {
+            Iterator<WrappedPreparedStatement<PreparedStatement>> eldest = idle.values().iterator();
+            WrappedPreparedStatement<PreparedStatement> evicted = eldest.next();
+            eldest.remove();
+            evicted.connection.flushBatch(evicted);
+            evicted.getDelegate().close();
+        }
+        idle.put(statement.getKey(), statement);
+        return true;
+    }
+
+    void closeAll() throws SQLException {
+        SQLException failure = null;
+        for (WrappedPreparedStatement<PreparedStatement> statement : idle.values()) {
+            try {
+                statement.getDelegate().close();
+            } catch (SQLException ex) {
+                if (failure == null) failure = ex; else failure.addSuppressed(ex);
+            }
+        }
+        idle.clear();
+        if (failure != null) throw failure;
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.witoldsz.ultm.internal;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Identifies prepared statements which are interchangeable: same SQL prepared with same flags.
+ *
+ * @author witoldsz
+ */
+final class StatementKey {
+
+    private final String sql;
+    private final int resultSetType;
+    private final int resultSetConcurrency;
+    private final int resultSetHoldability;
+    private final int autoGeneratedKeys;
+    private final int[] columnIndexes;
+    private final String[] columnNames;
+    private final int hash;
+
+    StatementKey(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability,
+            int autoGeneratedKeys, int[] columnIndexes, String[] columnNames) {
+        this.sql = sql;
+        this.resultSetType = resultSetType;
+        this.resultSetConcurrency = resultSetConcurrency;
+        this.resultSetHoldability = resultSetHoldability;
+        this.autoGeneratedKeys = autoGeneratedKeys;
+        this.columnIndexes = columnIndexes;
+        this.columnNames = columnNames;
+        this.hash = 31 * Objects.hashCode(sql)
+            + 7 * resultSetType + 5 * resultSetConcurrency + 3 * resultSetHoldability + autoGeneratedKeys;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof StatementKey)) return false;
+        StatementKey other = (StatementKey) obj;
+        return hash == other.hash
+            && Objects.equals(sql, other.sql)
+            && resultSetType == other.resultSetType
+            && resultSetConcurrency == other.resultSetConcurrency
+            && resultSetHoldability == other.resultSetHoldability
+            && autoGeneratedKeys == other.autoGeneratedKeys
+            && Arrays.equals(columnIndexes, other.columnIndexes)
+            && Arrays.equals(columnNames, other.columnNames);
+    }
+
+}
@@ -1,14 +1,54 @@
 package com.github.witoldsz.ultm.internal;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Optional;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.sql.Savepoint;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import javax.sql.DataSource;
+import com.github.witoldsz.ultm.Propagation;
+import com.github.witoldsz.ultm.ReplicaSelector;
+import com.github.witoldsz.ultm.RetryPolicy;
+import com.github.witoldsz.ultm.RowMapper;
+import com.github.witoldsz.ultm.StatementLeak;
+import com.github.witoldsz.ultm.TxContextStorage;
+import com.github.witoldsz.ultm.TxHandoff;
 import com.github.witoldsz.ultm.TxManager;
+import com.github.witoldsz.ultm.TxMetrics;
+import com.github.witoldsz.ultm.TxOptions;
 import com.github.witoldsz.ultm.UnitOfWork;
 import com.github.witoldsz.ultm.UnitOfWorkCall;
 import com.github.witoldsz.ultm.UnitOfWorkException;
+import com.github.witoldsz.ultm.UnmodifiedTxFinish;
+import com.github.witoldsz.ultm.pool.ConnectionPool;
 
 /**
  *
@@ -16,49 +56,404 @@ import com.github.witoldsz.ultm.UnitOfWorkException;
  */
 public class ThreadLocalTxManager implements TxManager, ConnectionProvider {
 
-    private static final WrappedConnection TRANSACTION_MARKER = new WrappedConnection(null);
+    private static final TxOptions READ_ONLY = TxOptions.defaults().withReadOnly(true);
+    private static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
 
-    private final ThreadLocal<WrappedConnection> connections = new ThreadLocal<>();
+    private TxContexts contexts = new TxContexts(true);
     private final DataSource rawDataSource;
+    private final DataSource[] replicaDataSources;
+    private final ReplicaSelector replicaSelector;
     private final Consumer<Connection> connectionTuner;
-    private Optional<Runnable> afterRollbackListener = Optional.empty();
+    private Runnable afterRollbackListener;
+    private UnmodifiedTxFinish unmodifiedTxFinish = UnmodifiedTxFinish.COMMIT;
+    private Predicate<String> modifyingSqlClassifier;
+    private int statementCacheSize;
+    private int maxBatchSize;
+    private boolean autoCommitCheck;
+    private TxMetrics metrics;
+    private volatile ConnectionWatchdog watchdog;
+    private PinnedConnections pins;
+    private volatile Executor prefetchExecutor;
+    private Executor afterCommitExecutor;
+    private Consumer<StatementLeak> statementLeakListener;
+    private boolean captureStatementOpenedAt;
+    private int streamFetchSize = 1000;
+    private int maxParallelism = 4;
+    private volatile Executor parallelExecutor;
+    private volatile ScheduledThreadPoolExecutor deadlineExecutor;
 
     public ThreadLocalTxManager(DataSource rawDataSource, Consumer<Connection> connectionTuner) {
+        this(rawDataSource, emptyList(), ReplicaSelector.roundRobin(), connectionTuner);
+    }
+
+    public ThreadLocalTxManager(DataSource rawDataSource, List<DataSource> replicaDataSources,
+            ReplicaSelector replicaSelector, Consumer<Connection> connectionTuner) {
         this.rawDataSource = rawDataSource;
+        this.replicaDataSources = replicaDataSources.toArray(new DataSource[replicaDataSources.size()]);
+        this.replicaSelector = replicaSelector;
         this.connectionTuner = connectionTuner;
+        this.autoCommitCheck = !(rawDataSource instanceof ConnectionPool)
+            || !replicaDataSources.stream().allMatch(ds -> ds instanceof ConnectionPool);
     }
 
     @Override
     public void setAfterRollbackListener(Runnable listener) {
-        this.afterRollbackListener = Optional.ofNullable(listener);
+        this.afterRollbackListener = listener;
+    }
+
+    public void setUnmodifiedTxFinish(UnmodifiedTxFinish finish) {
+        this.unmodifiedTxFinish = finish;
+    }
+
+    public void setModifyingSqlClassifier(Predicate<String> classifier) {
+        this.modifyingSqlClassifier = classifier;
+    }
+
+    public void setStatementCacheSize(int size) {
+        this.statementCacheSize = size;
+    }
+
+    public void setMaxBatchSize(int size) {
+        this.maxBatchSize = size;
+    }
+
+    public void setTxMetrics(TxMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setAutoCommitCheck(boolean check) {
+        this.autoCommitCheck = check;
+    }
+
+    public void setStreamFetchSize(int fetchSize) {
+        this.streamFetchSize = fetchSize;
+    }
+
+    public void setMaxParallelism(int maxParallelism) {
+        if (maxParallelism < 1) throw new IllegalArgumentException("maxParallelism must be positive");
+        this.maxParallelism = maxParallelism;
+    }
+
+    /**
+     * @param executor runs units of {@link #txParallel(List)}, {@code null} for the default one
+     */
+    public void setParallelExecutor(Executor executor) {
+        this.parallelExecutor = executor;
+    }
+
+    /**
+     * @param idleWindow how long connection can stay with the thread after transaction, zero to disable pinning
+     * @param maxPinned maximum number of connections staying with threads at once
+     */
+    public void setConnectionPinning(Duration idleWindow, int maxPinned) {
+        this.pins = idleWindow.isZero() || maxPinned == 0 ? null : new PinnedConnections(idleWindow, maxPinned);
+    }
+
+    /**
+     * @return number of connections staying with threads between transactions
+     */
+    public int getPinnedConnectionCount() {
+        return pins == null ? 0 : pins.getPinnedCount();
+    }
+
+    /**
+     * @param executor runs acquisition of connections prefetched at begin, {@code null} for the default one
+     */
+    public void setPrefetchExecutor(Executor executor) {
+        this.prefetchExecutor = executor;
+    }
+
+    /**
+     * @param executor runs after-commit callbacks, {@code null} to run them on the thread which committed
+     */
+    public void setAfterCommitExecutor(Executor executor) {
+        this.afterCommitExecutor = executor;
+    }
+
+    /**
+     * @param listener gets statements left open by transactions, {@code null} to stop tracking them
+     * @param captureStackTraces if stack trace should be captured whenever statement is opened
+     */
+    public void setStatementLeakListener(Consumer<StatementLeak> listener, boolean captureStackTraces) {
+        this.statementLeakListener = listener;
+        this.captureStatementOpenedAt = captureStackTraces;
+    }
+
+    /**
+     * @param watchdog replaces (and closes) the current one, {@code null} to remove it
+     */
+    public synchronized void setWatchdog(ConnectionWatchdog watchdog) {
+        ConnectionWatchdog replaced = this.watchdog;
+        this.watchdog = watchdog;
+        if (replaced != null && replaced != watchdog) replaced.close();
+    }
+
+    /**
+     * Watchdog can be closed after it has been replaced, then the one replacing it stays.
+     */
+    public synchronized void removeWatchdog(ConnectionWatchdog watchdog) {
+        if (this.watchdog == watchdog) this.watchdog = null;
+        watchdog.close();
+    }
+
+    public void setTxContextStorage(TxContextStorage storage) {
+        this.contexts = new TxContexts(storage == TxContextStorage.PER_THREAD);
     }
 
     @Override
     public WrappedConnection get() throws SQLException {
-        WrappedConnection c = connections.get();
-        if (c == null) {
+        TxContext ctx = contexts.get();
+        if (ctx == null || !ctx.isActive()) {
+            if (ctx != null && ctx.isAborted()) throw new SQLException("Transaction was aborted.");
             throw new IllegalStateException("Transaction is not active.");
         }
-        if (c == TRANSACTION_MARKER) {
-            Connection rawConnection = rawDataSource.getConnection();
-            connections.set(c = new WrappedConnection(rawConnection));
-            if (c.getAutoCommit()) c.setAutoCommit(false); // just to make sure
+        WrappedConnection c = ctx.connection;
+        if (!ctx.isConnectionAcquired()) {
+            if (c.isTimedOut()) throw new SQLTimeoutException("Transaction timed out.");
+            long acquiringAt = metrics == null ? 0 : System.nanoTime();
+            c.setDelegate(ctx.prefetch != null ? awaitPrefetched(ctx) : acquireRawConnection(ctx));
+            if (metrics != null) metrics.connectionAcquired(System.nanoTime() - acquiringAt);
+            ctx.acquired();
+            ConnectionWatchdog watchdog = this.watchdog;
+            if (watchdog != null) watchdog.register(ctx);
+            if (c.isTimed()) scheduleAbort(ctx);
+            c.setModifyingSql(modifyingSqlClassifier);
+            c.setStatementCacheSize(statementCacheSize);
+            c.setMaxBatchSize(maxBatchSize);
+            c.setLeakTracking(statementLeakListener != null, captureStatementOpenedAt);
+            c.setWrapStatements(unmodifiedTxFinish == UnmodifiedTxFinish.ROLLBACK || statementCacheSize > 0
+                || maxBatchSize > 0 || statementLeakListener != null);
+            if (autoCommitCheck && c.getAutoCommit()) c.setAutoCommit(false); // just to make sure
             connectionTuner.accept(c);
+            if (ctx.isolation >= 0) applyIsolation(ctx);
+            if (c.isTimed()) applyNetworkTimeout(ctx);
+            if (ctx.readOnly) applyReadOnly(ctx);
         }
         return c;
     }
 
+    /**
+     * Connections of replicas can be read-only already, then there is nothing to restore.
+     */
+    private void applyReadOnly(TxContext ctx) throws SQLException {
+        Connection raw = ctx.connection.getDelegate();
+        if (!raw.isReadOnly()) {
+            raw.setReadOnly(true);
+            ctx.readOnlyChanged = true;
+        }
+    }
+
+    private void applyIsolation(TxContext ctx) throws SQLException {
+        Connection raw = ctx.connection.getDelegate();
+        int original = raw.getTransactionIsolation();
+        if (original != ctx.isolation) {
+            raw.setTransactionIsolation(ctx.isolation);
+            ctx.originalIsolation = original;
+        }
+    }
+
+    /**
+     * Drivers which do not support network timeout (or are older than JDBC 4.1) have to rely on query timeouts.
+     */
+    private void applyNetworkTimeout(TxContext ctx) throws SQLException {
+        Connection raw = ctx.connection.getDelegate();
+        int millis = (int) Math.min(Integer.MAX_VALUE, Math.max(1, ctx.connection.remainingNanos() / 1_000_000));
+        try {
+            int previous = raw.getNetworkTimeout();
+            raw.setNetworkTimeout(Runnable::run, millis);
+            ctx.networkTimeout = previous;
+        } catch (SQLFeatureNotSupportedException | AbstractMethodError ex) {
+            // query timeouts must do
+        }
+    }
+
+    /**
+     * Starts acquiring connection in background. Replica is chosen right away, so that it is known
+     * on the thread of transaction, no matter if the connection ends up used or not. If executor is busy,
+     * connection is acquired when needed, as usual.
+     */
+    private void prefetch(TxContext ctx) {
+        Connection pinned = pins == null || !usesPrimary(ctx) ? null : pins.take(ctx);
+        if (pinned != null) {
+            ctx.prefetch = CompletableFuture.completedFuture(pinned);
+            return;
+        }
+        DataSource dataSource = rawDataSource;
+        if (!usesPrimary(ctx)) {
+            ctx.replica = replicaSelector.acquire(replicaDataSources.length);
+            dataSource = replicaDataSources[ctx.replica];
+        }
+        DataSource source = dataSource;
+        try {
+            ctx.prefetch = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return source.getConnection();
+                } catch (SQLException ex) {
+                    throw new CompletionException(ex);
+                }
+            }, prefetchExecutor());
+        } catch (RejectedExecutionException ex) {
+            if (ctx.replica >= 0) {
+                replicaSelector.release(ctx.replica);
+                ctx.replica = -1;
+            }
+        }
+    }
+
+    /**
+     * Waits no longer than transaction has left, connection arriving later is discarded.
+     */
+    private Connection awaitPrefetched(TxContext ctx) throws SQLException {
+        CompletableFuture<Connection> prefetch = ctx.prefetch;
+        try {
+            Connection connection = ctx.connection.isTimed()
+                ? prefetch.get(Math.max(0, ctx.connection.remainingNanos()), NANOSECONDS)
+                : prefetch.join();
+            ctx.prefetch = null;
+            return connection;
+        } catch (TimeoutException ex) {
+            discardPrefetched(ctx);
+            throw new SQLTimeoutException("Transaction timed out.");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            discardPrefetched(ctx);
+            throw new SQLException("Interrupted while waiting for connection.", ex);
+        } catch (ExecutionException | CompletionException ex) {
+            ctx.prefetch = null;
+            if (ctx.replica >= 0) {
+                replicaSelector.release(ctx.replica);
+                ctx.replica = -1;
+            }
+            if (ex.getCause() instanceof SQLException) throw (SQLException) ex.getCause();
+            throw new UnitOfWorkException(ex.getCause());
+        }
+    }
+
+    /**
+     * Transaction ended without touching the database, so prefetched connection is closed as soon as it arrives.
+     */
+    private void discardPrefetched(TxContext ctx) {
+        CompletableFuture<Connection> prefetch = ctx.prefetch;
+        int replica = ctx.replica;
+        ctx.prefetch = null;
+        ctx.replica = -1;
+        prefetch.whenComplete((connection, failure) -> {
+            try {
+                if (connection != null) connection.close();
+            } catch (SQLException ex) {
+                // nobody to tell
+            } finally {
+                if (replica >= 0) replicaSelector.release(replica);
+            }
+        });
+    }
+
+    private Executor prefetchExecutor() {
+        Executor executor = prefetchExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                if (prefetchExecutor == null) {
+                    prefetchExecutor = daemonThreads("ultm-prefetch-", DEFAULT_THREADS);
+                }
+                executor = prefetchExecutor;
+            }
+        }
+        return executor;
+    }
+
+    private Executor parallelExecutor() {
+        Executor executor = parallelExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                if (parallelExecutor == null) {
+                    parallelExecutor = daemonThreads("ultm-parallel-", DEFAULT_THREADS);
+                }
+                executor = parallelExecutor;
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Query timeout covers statements only, while unit of work can overrun its deadline doing anything else,
+     * so transaction is aborted at the deadline: its work is rolled back and connection let go right away.
+     */
+    private void scheduleAbort(TxContext ctx) {
+        long state = ctx.getState();
+        ctx.deadlineAbort = deadlineExecutor().schedule(() -> ctx.abort(state),
+            ctx.connection.remainingNanos(), NANOSECONDS);
+    }
+
+    private ScheduledThreadPoolExecutor deadlineExecutor() {
+        ScheduledThreadPoolExecutor executor = deadlineExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                if (deadlineExecutor == null) {
+                    ScheduledThreadPoolExecutor created = new ScheduledThreadPoolExecutor(1, r -> {
+                        Thread t = new Thread(r, "ultm-deadline");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    created.setRemoveOnCancelPolicy(true);
+                    deadlineExecutor = created;
+                }
+                executor = deadlineExecutor;
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Bounded, with no queue: whoever finds all the threads busy does the work itself, see
+     * {@link RejectedExecutionException}.
+     */
+    private static Executor daemonThreads(String namePrefix, int threads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadPoolExecutor(0, threads, 60, SECONDS, new SynchronousQueue<>(), r -> {
+            Thread t = new Thread(r, namePrefix + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return {@code false} if transaction goes to a replica, connection of which is never pinned
+     */
+    private boolean usesPrimary(TxContext ctx) {
+        return !ctx.readOnly || replicaDataSources.length == 0;
+    }
+
+    private Connection acquireRawConnection(TxContext ctx) throws SQLException {
+        if (usesPrimary(ctx)) {
+            Connection pinned = pins == null ? null : pins.take(ctx);
+            return pinned != null ? pinned : rawDataSource.getConnection();
+        }
+        int replica = replicaSelector.acquire(replicaDataSources.length);
+        try {
+            Connection rawConnection = replicaDataSources[replica].getConnection();
+            ctx.replica = replica;
+            return rawConnection;
+        } catch (SQLException | RuntimeException ex) {
+            replicaSelector.release(replica);
+            throw ex;
+        }
+    }
+
+    /**
+     * Commit is outside of the try block on purpose: it always ends the transaction, even if it fails.
+     */
     @Override
     public <T> T txUnwrappedResult(UnitOfWorkCall<T> unit) throws Exception {
-        begin();
+        TxContext ctx = begin(false, 0);
+        T result;
         try {
-            T result = unit.call();
-            commit();
-            return result;
+            result = unit.call();
         } catch (Exception e) {
-            rollback();
+            rollbackAfter(ctx, e);
             throw e;
         }
+        commit(ctx);
+        return result;
     }
 
     @Override
@@ -74,58 +469,834 @@ public class ThreadLocalTxManager implements TxManager, ConnectionProvider {
 
     @Override
     public void txUnwrapped(UnitOfWork unit) throws Exception {
-        txUnwrappedResult(() -> { unit.run(); return null;});
+        TxContext ctx = begin(false, 0);
+        try {
+            unit.run();
+        } catch (Exception e) {
+            rollbackAfter(ctx, e);
+            throw e;
+        }
+        commit(ctx);
     }
 
+    @Override
     public void tx(UnitOfWork unit) {
-        txResult(() -> {unit.run(); return null;});
+        try {
+            txUnwrapped(unit);
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new UnitOfWorkException(ex);
+        }
     }
 
     @Override
-    public void begin() {
-        throwIfAlreadyAssigned();
-        connections.set(TRANSACTION_MARKER);
+    public <T> T txResult(Duration timeout, UnitOfWorkCall<T> unit) {
+        return txResult(timed(timeout), unit);
     }
 
     @Override
-    public void commit() {
-        pullDelegatedConnection().ifPresent( delegated -> {
+    public void tx(Duration timeout, UnitOfWork unit) {
+        tx(timed(timeout), unit);
+    }
+
+    @Override
+    public <T> T txResult(TxOptions options, UnitOfWorkCall<T> unit) {
+        TxContext ctx = beginWith(options);
+        T result;
+        try {
+            result = unit.call();
+        } catch (RuntimeException ex) {
+            rollbackAfter(ctx, ex);
+            throw ex;
+        } catch (Exception ex) {
+            UnitOfWorkException failure = new UnitOfWorkException(ex);
+            rollbackAfter(ctx, failure);
+            throw failure;
+        }
+        commit(ctx);
+        return result;
+    }
+
+    @Override
+    public void tx(TxOptions options, UnitOfWork unit) {
+        txResult(options, () -> {
+            unit.run();
+            return null;
+        });
+    }
+
+    @Override
+    public <T> T txReadOnlyResult(UnitOfWorkCall<T> unit) {
+        return txResult(READ_ONLY, unit);
+    }
+
+    @Override
+    public void txReadOnly(UnitOfWork unit) {
+        tx(READ_ONLY, unit);
+    }
+
+    @Override
+    public <T> T txResult(Propagation propagation, UnitOfWorkCall<T> unit) {
+        TxContext ctx = contexts.get();
+        if (ctx == null || !ctx.isActive()) {
+            return txResult(unit);
+        }
+        switch (propagation) {
+            case REQUIRED:
+                return joined(ctx, unit);
+            case NESTED:
+                return nested(ctx, unit);
+            case REQUIRES_NEW:
+                return separated(unit);
+            default:
+                throw new IllegalArgumentException(propagation.toString());
+        }
+    }
+
+    @Override
+    public void tx(Propagation propagation, UnitOfWork unit) {
+        txResult(propagation, () -> {
+            unit.run();
+            return null;
+        });
+    }
+
+    private <T> T joined(TxContext ctx, UnitOfWorkCall<T> unit) {
+        try {
+            return unit.call();
+        } catch (RuntimeException ex) {
+            ctx.rollbackOnly = true;
+            throw ex;
+        } catch (Exception ex) {
+            ctx.rollbackOnly = true;
+            throw new UnitOfWorkException(ex);
+        }
+    }
+
+    /**
+     * No connection, no savepoint: if unit acquires it and fails, there is nothing but the unit's work to roll back.
+     */
+    private <T> T nested(TxContext ctx, UnitOfWorkCall<T> unit) {
+        int beforeCommit = size(ctx.beforeCommit);
+        int afterCommit = size(ctx.afterCommit);
+        int afterRollback = size(ctx.afterRollback);
+        Savepoint savepoint = null;
+        if (ctx.isConnectionAcquired()) {
             try {
-                delegated.commit();
-                delegated.close();
+                ctx.connection.flushBatch();
+                savepoint = ctx.connection.getDelegate().setSavepoint();
             } catch (SQLException ex) {
                 throw new UnitOfWorkException(ex);
             }
+        }
+        try {
+            T result = unit.call();
+            if (savepoint != null) ctx.connection.getDelegate().releaseSavepoint(savepoint);
+            return result;
+        } catch (Exception ex) {
+            try {
+                ctx.connection.discardBatch();
+                if (savepoint != null) {
+                    ctx.connection.getDelegate().rollback(savepoint);
+                } else if (ctx.isConnectionAcquired()) {
+                    ctx.connection.getDelegate().rollback();
+                }
+            } catch (SQLException rollbackFailure) {
+                ex.addSuppressed(rollbackFailure);
+                ctx.rollbackOnly = true;
+            }
+            RuntimeException failure = ex instanceof RuntimeException ? (RuntimeException) ex : new UnitOfWorkException(ex);
+            nestedRolledBack(ctx, beforeCommit, afterCommit, afterRollback, failure);
+            throw failure;
+        }
+    }
+
+    /**
+     * Callbacks registered by nested unit which has been rolled back go with it, except for the after-rollback ones,
+     * which run right away.
+     * @param beforeCommit number of before-commit callbacks registered before the unit, likewise the others
+     */
+    private static void nestedRolledBack(TxContext ctx, int beforeCommit, int afterCommit, int afterRollback,
+            RuntimeException failure) {
+        if (ctx.beforeCommit != null) ctx.beforeCommit.subList(beforeCommit, ctx.beforeCommit.size()).clear();
+        if (ctx.afterCommit != null) ctx.afterCommit.subList(afterCommit, ctx.afterCommit.size()).clear();
+        if (size(ctx.afterRollback) > afterRollback) {
+            List<Runnable> registered = ctx.afterRollback.subList(afterRollback, ctx.afterRollback.size());
+            List<Runnable> callbacks = new ArrayList<>(registered);
+            registered.clear();
+            RuntimeException callbackFailure = runAll(callbacks);
+            if (callbackFailure != null) failure.addSuppressed(callbackFailure);
+        }
+    }
+
+    private static int size(List<?> list) {
+        return list == null ? 0 : list.size();
+    }
+
+    /**
+     * Context of separated transaction is dropped afterwards, so it is detached: its connection must not be pinned.
+     */
+    private <T> T separated(UnitOfWorkCall<T> unit) {
+        TxContext suspended = contexts.attach(null);
+        try {
+            TxContext ctx = begin(false, 0);
+            ctx.detached = true;
+            T result;
+            try {
+                result = unit.call();
+            } catch (RuntimeException ex) {
+                rollbackAfter(ctx, ex);
+                throw ex;
+            } catch (Exception ex) {
+                UnitOfWorkException failure = new UnitOfWorkException(ex);
+                rollbackAfter(ctx, failure);
+                throw failure;
+            }
+            commit(ctx);
+            return result;
+        } finally {
+            contexts.detach(suspended);
+        }
+    }
+
+    @Override
+    public <T> T txWithRetryResult(RetryPolicy policy, UnitOfWorkCall<T> unit) {
+        for (int attempt = 1; ; ++attempt) {
+            try {
+                return txUnwrappedResult(unit);
+            } catch (Exception ex) {
+                if (!policy.shouldRetry(attempt, ex)) {
+                    throw ex instanceof RuntimeException ? (RuntimeException) ex : new UnitOfWorkException(ex);
+                }
+                try {
+                    policy.backOff(attempt, ex);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new UnitOfWorkException(ex);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void txWithRetry(RetryPolicy policy, UnitOfWork unit) {
+        txWithRetryResult(policy, () -> {
+            unit.run();
+            return null;
         });
     }
 
     @Override
-    public void rollback() {
-        pullDelegatedConnection().ifPresent( delegated -> {
+    public <T> Stream<T> txStream(String sql, RowMapper<T> rowMapper, Object... parameters) {
+        TxContext suspended = contexts.attach(null);
+        TxContext ctx;
+        PreparedStatement statement = null;
+        ResultSet resultSet;
+        try {
+            ctx = begin(true, 0);
+            ctx.detached = true;
             try {
-                delegated.rollback();
-                delegated.close();
+                statement = get().prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                statement.setFetchSize(streamFetchSize);
+                for (int i = 0; i < parameters.length; ++i) {
+                    statement.setObject(i + 1, parameters[i]);
+                }
+                resultSet = statement.executeQuery();
+            } catch (SQLException | RuntimeException ex) {
+                try {
+                    if (statement != null) statement.close();
+                    rollback();
+                } catch (SQLException | RuntimeException rollbackFailure) {
+                    ex.addSuppressed(rollbackFailure);
+                }
+                throw ex instanceof RuntimeException ? (RuntimeException) ex : new UnitOfWorkException(ex);
+            }
+        } finally {
+            contexts.detach(suspended);
+        }
+        ResultSetSpliterator<T> rows = new ResultSetSpliterator<>(resultSet, rowMapper);
+        PreparedStatement opened = statement;
+        return StreamSupport.stream(rows, false).onClose(() -> endStream(ctx, opened, rows.isFailed()));
+    }
+
+    /**
+     * Every worker keeps taking next unit until there are none left or one of them failed, so there are no more
+     * tasks than workers, whatever the number of units.
+     */
+    @Override
+    public <T> List<T> txParallel(List<UnitOfWorkCall<T>> units) {
+        int workers = Math.min(maxParallelism, units.size());
+        AtomicInteger nextUnit = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Object[] results = new Object[units.size()];
+        CountDownLatch done = new CountDownLatch(workers);
+        Runnable worker = () -> {
+            try {
+                for (int i = nextUnit.getAndIncrement(); i < results.length && failure.get() == null;
+                        i = nextUnit.getAndIncrement()) {
+                    results[i] = parallelUnit(units.get(i), failure);
+                }
+            } catch (Throwable ex) {
+                failure.compareAndSet(null, ex);
+            } finally {
+                done.countDown();
+            }
+        };
+        Executor executor = parallelExecutor();
+        for (int i = 1; i < workers; ++i) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException ex) {
+                done.countDown(); // the remaining workers will take its units
+            }
+        }
+        if (workers > 0) worker.run();
+        awaitUninterruptibly(done);
+        Throwable ex = failure.get();
+        if (ex instanceof RuntimeException) throw (RuntimeException) ex;
+        if (ex instanceof Error) throw (Error) ex;
+        if (ex != null) throw new UnitOfWorkException(ex);
+        @SuppressWarnings("unchecked")
+        List<T> list = (List<T>) asList(results);
+        return list;
+    }
+
+    /**
+     * Unit runs on thread of caller too, so its transaction is put aside and the context of unit is then dropped.
+     */
+    private <T> T parallelUnit(UnitOfWorkCall<T> unit, AtomicReference<Throwable> failure) throws Exception {
+        TxContext current = contexts.get();
+        TxContext suspended = current != null && current.isActive() ? contexts.attach(null) : null;
+        try {
+            TxContext ctx = begin(true, 0);
+            ctx.detached = suspended != null;
+            T result;
+            try {
+                result = unit.call();
+            } catch (Exception | Error ex) {
+                rollbackAfter(ctx, ex);
+                throw ex;
+            }
+            if (failure.get() == null) {
+                commit(ctx);
+            } else {
+                rollback(ctx);
+            }
+            return result;
+        } finally {
+            if (suspended != null) contexts.detach(suspended);
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Stream can be closed by any thread, so its context is attached (and the thread becomes its owner)
+     * just for the time of commit or rollback.
+     */
+    private void endStream(TxContext ctx, PreparedStatement statement, boolean failed) {
+        TxContext previous = contexts.attach(ctx);
+        ctx.connection.setOwner(Thread.currentThread());
+        try {
+            try {
+                statement.close();
             } catch (SQLException ex) {
-                throw new UnitOfWorkException(ex);
+                UnitOfWorkException failure = new UnitOfWorkException(ex);
+                rollbackAfter(ctx, failure);
+                throw failure;
+            }
+            if (failed) {
+                rollback();
+            } else {
+                commit();
+            }
+        } finally {
+            contexts.detach(previous);
+        }
+    }
+
+    @Override
+    public void begin() {
+        begin(false, 0);
+    }
+
+    @Override
+    public void beginReadOnly() {
+        begin(true, 0);
+    }
+
+    @Override
+    public void begin(Duration timeout) {
+        beginWith(timed(timeout));
+    }
+
+    @Override
+    public void begin(TxOptions options) {
+        beginWith(options);
+    }
+
+    private static TxOptions timed(Duration timeout) {
+        return TxOptions.defaults().withTimeout(timeout);
+    }
+
+    private TxContext beginWith(TxOptions options) {
+        Duration timeout = options.getTimeout();
+        TxContext ctx = begin(options.isReadOnly(), timeout == null ? 0 : timeout.toNanos());
+        ctx.isolation = options.getIsolation();
+        ctx.label = options.getLabel();
+        if (options.isPrefetch()) prefetch(ctx);
+        return ctx;
+    }
+
+    /**
+     * @param timeoutNanos 0 if transaction has no deadline
+     */
+    private TxContext begin(boolean readOnly, long timeoutNanos) {
+        TxContext ctx = contexts.get();
+        if (ctx != null && ctx.phase() != TxContext.NONE) {
+            throw new IllegalStateException("Transaction is in progress already.");
+        }
+        ctx = contexts.bind(ctx);
+        ctx.begun();
+        ctx.readOnly = readOnly;
+        ctx.rollbackOnly = false;
+        ctx.detached = false;
+        ctx.isolation = -1;
+        ctx.label = null;
+        ctx.connection.setDeadline(timeoutNanos > 0, timeoutNanos > 0 ? System.nanoTime() + timeoutNanos : 0);
+        ctx.connection.setOwner(Thread.currentThread());
+        if (metrics != null) {
+            ctx.beganAt = System.nanoTime();
+            metrics.begun();
+        }
+        ConnectionWatchdog watchdog = this.watchdog;
+        ctx.beginTrace = watchdog == null ? null : watchdog.sampleBeginTrace();
+        return ctx;
+    }
+
+    @Override
+    public Runnable propagate(Runnable task) {
+        TxContext ctx = joinable();
+        return () -> {
+            TxContext previous = contexts.attach(ctx);
+            try {
+                task.run();
             } finally {
-                afterRollbackListener.ifPresent(Runnable::run);
+                contexts.detach(previous);
             }
-        });
+        };
+    }
+
+    @Override
+    public <T> Callable<T> propagate(Callable<T> task) {
+        TxContext ctx = joinable();
+        return () -> {
+            TxContext previous = contexts.attach(ctx);
+            try {
+                return task.call();
+            } finally {
+                contexts.detach(previous);
+            }
+        };
     }
 
-    private Optional<Connection> pullDelegatedConnection() {
-        WrappedConnection c = connections.get();
-        if (c == null) {
+    @Override
+    public TxHandoff handOff() {
+        TxContext ctx = contexts.get();
+        if (ctx == null || !ctx.isActive()) {
             throw new IllegalStateException("Transaction is not active.");
         }
-        connections.remove();
-        return c == TRANSACTION_MARKER ? Optional.empty() : Optional.of(c.getDelegate());
+        if (!ctx.connection.isOwner()) {
+            throw new IllegalStateException("Transaction belongs to other thread.");
+        }
+        if (ctx.isConnectionAcquired()) {
+            try {
+                ctx.connection.flushBatch();
+            } catch (SQLException ex) {
+                throw new UnitOfWorkException(ex);
+            }
+        }
+        contexts.detach(null);
+        ctx.connection.setOwner(null);
+        return new ContextHandoff(ctx);
     }
 
-    private void throwIfAlreadyAssigned() {
-        if (connections.get() != null) {
+    /**
+     * Context the thread had so far is dropped, so whatever it kept pinned goes back to the pool.
+     */
+    @Override
+    public void takeOver(TxHandoff handoff) {
+        TxContext current = contexts.get();
+        if (current != null && current.phase() != TxContext.NONE) {
             throw new IllegalStateException("Transaction is in progress already.");
         }
+        TxContext ctx = ((ContextHandoff) handoff).take();
+        if (ctx == null) {
+            throw new IllegalStateException("Transaction has been taken over already.");
+        }
+        ctx.connection.setOwner(Thread.currentThread());
+        contexts.attach(ctx);
+        PinnedConnections pins = this.pins;
+        Connection pinned = current == null || pins == null ? null : pins.take(current);
+        if (pinned != null) {
+            try {
+                pinned.close();
+            } catch (SQLException ex) {
+                // nobody to tell
+            }
+        }
+        ConnectionWatchdog watchdog = this.watchdog;
+        if (watchdog != null) watchdog.transfer(ctx);
+    }
+
+    /**
+     * Other threads are not allowed to acquire the connection, nor to touch pending batch, so it must be done now.
+     */
+    private TxContext joinable() {
+        TxContext ctx = contexts.get();
+        try {
+            get().flushBatch();
+        } catch (SQLException ex) {
+            throw new UnitOfWorkException(ex);
+        }
+        return ctx;
+    }
+
+    @Override
+    public void commit() {
+        commit(contexts.get());
+    }
+
+    /**
+     * Ownership is checked before anything else, since callbacks and batches must not run on behalf of
+     * a thread which cannot commit.
+     */
+    private void commit(TxContext ctx) {
+        if (ctx != null && (ctx.isActive() || ctx.isAborted()) && !ctx.connection.isOwner()) {
+            throw new IllegalStateException("Transaction belongs to other thread.");
+        }
+        if (ctx != null && ctx.isActive() && ctx.rollbackOnly) {
+            IllegalStateException failure =
+                new IllegalStateException("Transaction was marked rollback-only, so it has been rolled back.");
+            rollbackAfter(ctx, failure);
+            throw failure;
+        }
+        if (ctx != null && ctx.isActive() && ctx.beforeCommit != null) {
+            runBeforeCommit(ctx);
+        }
+        if (ctx != null && ctx.isActive() && ctx.connection.isTimedOut()) {
+            UnitOfWorkException failure = new UnitOfWorkException(new SQLTimeoutException("Transaction timed out."));
+            rollbackAfter(ctx, failure);
+            throw failure;
+        }
+        if (ctx != null && ctx.isActive() && ctx.isConnectionAcquired()) {
+            try {
+                ctx.connection.flushBatch();
+            } catch (SQLException ex) {
+                UnitOfWorkException failure = new UnitOfWorkException(ex);
+                rollbackAfter(ctx, failure);
+                throw failure;
+            }
+        }
+        long finishingAt = metrics == null ? 0 : System.nanoTime();
+        boolean modified = ctx != null && ctx.connection.isModified();
+        Connection delegated = pullDelegatedConnection(ctx);
+        if (delegated == null) {
+            if (ctx.prefetch != null) discardPrefetched(ctx);
+            if (metrics != null) metrics.finishedWithoutConnection(finishingAt - ctx.beganAt);
+            RuntimeException callbackFailure = afterCompletion(ctx, true);
+            if (callbackFailure != null) throw callbackFailure;
+            return;
+        }
+        if (ctx.aborted) {
+            releaseAborted(ctx, delegated, finishingAt);
+            throw new UnitOfWorkException(ctx.connection.isTimedOut()
+                ? new SQLTimeoutException("Transaction timed out.")
+                : new SQLException("Transaction was aborted."));
+        }
+        boolean finished = false;
+        RuntimeException callbackFailure;
+        try {
+            try {
+                if (modified || unmodifiedTxFinish == UnmodifiedTxFinish.COMMIT) {
+                    delegated.commit();
+                } else {
+                    delegated.rollback();
+                }
+                finished = true;
+            } catch (SQLException | RuntimeException ex) {
+                rollbackAfterFailedCommit(delegated, ex);
+                throw ex;
+            } finally {
+                release(ctx, delegated, finished);
+            }
+        } catch (SQLException ex) {
+            throw new UnitOfWorkException(ex);
+        } finally {
+            if (metrics != null) metrics.committed(finishingAt - ctx.beganAt, System.nanoTime() - finishingAt);
+            callbackFailure = afterCompletion(ctx, finished);
+        }
+        if (callbackFailure != null) throw callbackFailure;
+    }
+
+    @Override
+    public void rollback() {
+        rollback(contexts.get());
+    }
+
+    private void rollback(TxContext ctx) {
+        long finishingAt = metrics == null ? 0 : System.nanoTime();
+        Connection delegated = pullDelegatedConnection(ctx);
+        if (delegated == null) {
+            if (ctx.prefetch != null) discardPrefetched(ctx);
+            if (metrics != null) metrics.finishedWithoutConnection(finishingAt - ctx.beganAt);
+            RuntimeException callbackFailure = afterCompletion(ctx, false);
+            if (afterRollbackListener != null) afterRollbackListener.run();
+            if (callbackFailure != null) throw callbackFailure;
+            return;
+        }
+        if (ctx.aborted) {
+            releaseAborted(ctx, delegated, finishingAt);
+            return;
+        }
+        boolean finished = false;
+        RuntimeException callbackFailure;
+        try {
+            try {
+                ctx.connection.discardBatch();
+                delegated.rollback();
+                finished = true;
+            } finally {
+                release(ctx, delegated, finished);
+            }
+        } catch (SQLException ex) {
+            throw new UnitOfWorkException(ex);
+        } finally {
+            if (metrics != null) metrics.rolledBack(finishingAt - ctx.beganAt, System.nanoTime() - finishingAt);
+            callbackFailure = afterCompletion(ctx, false);
+            if (afterRollbackListener != null) afterRollbackListener.run();
+        }
+        if (callbackFailure != null) throw callbackFailure;
+    }
+
+    /**
+     * Rolls back transaction which has failed already: whatever fails meanwhile, e.g. a callback, is attached
+     * to the original failure instead of replacing it.
+     */
+    private void rollbackAfter(TxContext ctx, Throwable failure) {
+        try {
+            rollback(ctx);
+        } catch (RuntimeException ex) {
+            failure.addSuppressed(ex);
+        }
+    }
+
+    @Override
+    public void onBeforeCommit(UnitOfWork callback) {
+        TxContext ctx = activeContext();
+        if (ctx.beforeCommit == null) ctx.beforeCommit = new ArrayList<>();
+        ctx.beforeCommit.add(callback);
+    }
+
+    @Override
+    public void onAfterCommit(Runnable callback) {
+        TxContext ctx = activeContext();
+        if (ctx.afterCommit == null) ctx.afterCommit = new ArrayList<>();
+        ctx.afterCommit.add(callback);
+    }
+
+    @Override
+    public void onAfterRollback(Runnable callback) {
+        TxContext ctx = activeContext();
+        if (ctx.afterRollback == null) ctx.afterRollback = new ArrayList<>();
+        ctx.afterRollback.add(callback);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getTxResource(Object key, Supplier<T> factory) {
+        TxContext ctx = activeContext();
+        if (ctx.resources == null) ctx.resources = new IdentityHashMap<>();
+        Object resource = ctx.resources.get(key);
+        if (resource == null) {
+            resource = factory.get();
+            ctx.resources.put(key, resource);
+        }
+        return (T) resource;
+    }
+
+    private TxContext activeContext() {
+        TxContext ctx = contexts.get();
+        if (ctx == null || !ctx.isActive()) {
+            throw new IllegalStateException("Transaction is not active.");
+        }
+        return ctx;
+    }
+
+    /**
+     * Callbacks can register more callbacks, hence no iterator. Failing one means transaction is rolled back.
+     */
+    private void runBeforeCommit(TxContext ctx) {
+        List<UnitOfWork> callbacks = ctx.beforeCommit;
+        try {
+            for (int i = 0; i < callbacks.size(); ++i) {
+                callbacks.get(i).run();
+            }
+        } catch (Exception ex) {
+            RuntimeException failure = ex instanceof RuntimeException ? (RuntimeException) ex : new UnitOfWorkException(ex);
+            rollbackAfter(ctx, failure);
+            throw failure;
+        }
+    }
+
+    /**
+     * Ends the transaction and runs its callbacks.
+     * Callbacks are taken out of the context before they run, since they may begin another transaction.
+     * After-commit callbacks go to the executor, if there is one (and it accepts them), all of them as a single task.
+     * @param committed if transaction was committed
+     * @return failure of a callback, the others run anyway
+     */
+    private RuntimeException afterCompletion(TxContext ctx, boolean committed) {
+        ctx.completed();
+        List<Runnable> callbacks = committed ? ctx.afterCommit : ctx.afterRollback;
+        ctx.beforeCommit = null;
+        ctx.afterCommit = null;
+        ctx.afterRollback = null;
+        ctx.resources = null;
+        if (callbacks == null) return null;
+        Executor executor = afterCommitExecutor;
+        if (committed && executor != null) {
+            try {
+                executor.execute(() -> {
+                    RuntimeException failure = runAll(callbacks);
+                    if (failure != null) throw failure;
+                });
+                return null;
+            } catch (RejectedExecutionException ex) {
+                // transaction has been committed, so callbacks run here rather than not at all
+            }
+        }
+        return runAll(callbacks);
+    }
+
+    private static RuntimeException runAll(List<Runnable> callbacks) {
+        RuntimeException failure = null;
+        for (Runnable callback : callbacks) {
+            try {
+                callback.run();
+            } catch (RuntimeException ex) {
+                if (failure == null) failure = ex;
+                else failure.addSuppressed(ex);
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * Moves the transaction of current thread to {@link TxContext#COMPLETING}.
+     * @return the raw connection to commit or rollback and then {@link #release(TxContext, Connection, boolean)},
+     * or {@code null} if it was never acquired
+     */
+    private Connection pullDelegatedConnection(TxContext ctx) {
+        if (ctx == null || !ctx.isActive() && !ctx.isAborted()) {
+            throw new IllegalStateException("Transaction is not active.");
+        }
+        if (!ctx.connection.isOwner()) {
+            throw new IllegalStateException("Transaction belongs to other thread.");
+        }
+        if (!ctx.complete()) {
+            throw new IllegalStateException("Transaction is not active.");
+        }
+        contexts.unbind(ctx);
+        Connection delegated = ctx.connection.getDelegate();
+        ctx.connection.setDelegate(null);
+        return delegated;
+    }
+
+    /**
+     * Connection goes back to the pool as is, so whatever commit has left behind must not stay there
+     * for the next transaction to commit.
+     */
+    private static void rollbackAfterFailedCommit(Connection delegated, Exception failure) {
+        try {
+            delegated.rollback();
+        } catch (SQLException | RuntimeException rollbackFailure) {
+            failure.addSuppressed(rollbackFailure);
+        }
+    }
+
+    /**
+     * Connection of aborted transaction is closed already, so whatever fails while releasing it is no news.
+     */
+    private void releaseAborted(TxContext ctx, Connection delegated, long finishingAt) {
+        RuntimeException callbackFailure;
+        try {
+            release(ctx, delegated, false);
+        } catch (SQLException ex) {
+            ctx.readOnlyChanged = false;
+            ctx.originalIsolation = -1;
+            ctx.networkTimeout = -1;
+        } finally {
+            if (metrics != null) metrics.rolledBack(finishingAt - ctx.beganAt, System.nanoTime() - finishingAt);
+            callbackFailure = afterCompletion(ctx, false);
+            if (afterRollbackListener != null) afterRollbackListener.run();
+        }
+        if (callbackFailure != null) throw callbackFailure;
+    }
+
+    /**
+     * @param finished if transaction was committed or rolled back successfully, only then connection can be pinned
+     */
+    private void release(TxContext ctx, Connection delegated, boolean finished) throws SQLException {
+        boolean reset = false;
+        try {
+            Consumer<StatementLeak> leakListener = statementLeakListener;
+            if (leakListener != null) ctx.connection.closeLeakedStatements(leakListener);
+            ctx.connection.closeCachedStatements();
+            if (ctx.readOnlyChanged) {
+                delegated.setReadOnly(false);
+                ctx.readOnlyChanged = false;
+            }
+            if (ctx.originalIsolation >= 0) {
+                delegated.setTransactionIsolation(ctx.originalIsolation);
+                ctx.originalIsolation = -1;
+            }
+            if (ctx.networkTimeout >= 0) {
+                delegated.setNetworkTimeout(Runnable::run, ctx.networkTimeout);
+                ctx.networkTimeout = -1;
+            }
+            reset = true;
+        } finally {
+            try {
+                PinnedConnections pins = this.pins;
+                boolean pinnable = pins != null && finished && reset && ctx.replica < 0 && !ctx.detached
+                    && contexts.isReused();
+                if (!pinnable || !pins.pin(ctx, delegated)) delegated.close();
+            } finally {
+                if (ctx.deadlineAbort != null) {
+                    ctx.deadlineAbort.cancel(false);
+                    ctx.deadlineAbort = null;
+                }
+                ConnectionWatchdog watchdog = this.watchdog;
+                if (watchdog != null) watchdog.unregister(ctx);
+                if (ctx.replica >= 0) {
+                    replicaSelector.release(ctx.replica);
+                    ctx.replica = -1;
+                }
+            }
+        }
     }
 
 }
@@ -0,0 +1,181 @@
+package com.github.witoldsz.ultm.internal;
+
+import com.github.witoldsz.ultm.UnitOfWork;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Per-thread transaction state, created once per thread and reused by every transaction it runs,
+ * so that begin/commit allocate nothing. That includes the connection wrapper.
+ * <p>
+ * Transaction goes through {@link #NONE}, {@link #BEGUN}, {@link #ACTIVE} (connection acquired) and
+ * {@link #COMPLETING}, back to {@link #NONE}. Only the thread owning transaction moves it forward, with a single
+ * exception: other thread (e.g. watchdog's) can abort {@link #ACTIVE} transaction, moving it through
+ * {@link #ABORTING} to {@link #ABORTED}, from where the owner completes it as usual.
+ *
+ * @author witoldsz
+ */
+final class TxContext {
+
+    static final int NONE = 0;
+    static final int BEGUN = 1;
+    static final int ACTIVE = 2;
+    static final int COMPLETING = 3;
+    static final int ABORTING = 4;
+    static final int ABORTED = 5;
+    private static final int PHASE_BITS = 3;
+    private static final long PHASE_MASK = (1 << PHASE_BITS) - 1;
+
+    final WrappedConnection connection;
+    /**
+     * Number of transaction in the upper bits, so that abort meant for one transaction cannot hit the next one,
+     * and its phase in the lower ones.
+     */
+    private final AtomicLong state = new AtomicLong();
+    /**
+     * Set by owner once it completes transaction which has been aborted.
+     */
+    boolean aborted;
+    boolean readOnly;
+    /**
+     * Connection was made read-only by transaction, so it must be made read-write again when released.
+     */
+    boolean readOnlyChanged;
+    boolean rollbackOnly;
+    int replica = -1;
+    int networkTimeout = -1;
+    int isolation = -1;
+    int originalIsolation = -1;
+    String label;
+    final AtomicReference<Connection> pinned = new AtomicReference<>();
+    long pinnedAt;
+    CompletableFuture<Connection> prefetch;
+    /**
+     * Abort scheduled at the deadline of timed transaction, cancelled once connection is released.
+     */
+    ScheduledFuture<?> deadlineAbort;
+    List<UnitOfWork> beforeCommit;
+    List<Runnable> afterCommit;
+    List<Runnable> afterRollback;
+    Map<Object, Object> resources;
+    long beganAt;
+    Throwable beginTrace;
+    long acquiredAt;
+    Thread holder;
+    boolean reported;
+    int watchdogStripe = -1;
+    /**
+     * Context of its own (e.g. of a stream), dropped after transaction, so connection must not be pinned to it.
+     */
+    boolean detached;
+
+    TxContext(TxContexts contexts) {
+        this.connection = new WrappedConnection(contexts);
+    }
+
+    boolean isConnectionAcquired() {
+        return connection.getDelegate() != null;
+    }
+
+    long getState() {
+        return state.get();
+    }
+
+    static int phase(long state) {
+        return (int) (state & PHASE_MASK);
+    }
+
+    int phase() {
+        return phase(state.get());
+    }
+
+    boolean isActive() {
+        int phase = phase();
+        return phase == BEGUN || phase == ACTIVE;
+    }
+
+    boolean isAborted() {
+        int phase = phase();
+        return phase == ABORTING || phase == ABORTED;
+    }
+
+    /**
+     * Called by owner, when there is no transaction yet.
+     */
+    void begun() {
+        long number = (state.get() >>> PHASE_BITS) + 1;
+        aborted = false;
+        state.set(number << PHASE_BITS | BEGUN);
+    }
+
+    /**
+     * Called by owner, once connection is acquired, which is when transaction can be aborted.
+     */
+    void acquired() {
+        moveTo(state.get(), ACTIVE);
+    }
+
+    /**
+     * Called by owner to commit or rollback, waits for abort in progress (if any) to finish first.
+     * @return {@code false} if transaction is neither active nor aborted
+     */
+    boolean complete() {
+        while (true) {
+            long current = state.get();
+            int phase = phase(current);
+            if (phase == ABORTING) {
+                Thread.yield();
+            } else if (phase == BEGUN || phase == ACTIVE || phase == ABORTED) {
+                if (state.compareAndSet(current, current & ~PHASE_MASK | COMPLETING)) {
+                    aborted = phase == ABORTED;
+                    return true;
+                }
+            } else {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Called by owner once transaction has ended.
+     */
+    void completed() {
+        moveTo(state.get(), NONE);
+    }
+
+    /**
+     * Can be called by any thread, connection is aborted (or closed, if driver cannot abort) before owner
+     * gets to complete the transaction, so owner never pins nor releases connection being aborted.
+     * @param expected state of transaction as it was seen, the one to abort
+     * @return {@code false} if transaction has moved on since then
+     */
+    boolean abort(long expected) {
+        if (phase(expected) != ACTIVE || !state.compareAndSet(expected, expected & ~PHASE_MASK | ABORTING)) {
+            return false;
+        }
+        try {
+            Connection raw = connection.getDelegate();
+            try {
+                raw.abort(Runnable::run);
+            } catch (SQLFeatureNotSupportedException | AbstractMethodError notSupported) {
+                raw.close();
+            }
+        } catch (SQLException ex) {
+            // it is going to fail anyway
+        } finally {
+            moveTo(expected, ABORTED);
+        }
+        return true;
+    }
+
+    private void moveTo(long current, int phase) {
+        state.set(current & ~PHASE_MASK | phase);
+    }
+}
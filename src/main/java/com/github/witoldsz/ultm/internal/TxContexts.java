@@ -0,0 +1,70 @@
+package com.github.witoldsz.ultm.internal;
+
+/**
+ * Binds transaction contexts to threads, see {@link com.github.witoldsz.ultm.TxContextStorage}.
+ *
+ * @author witoldsz
+ */
+final class TxContexts {
+
+    private final ThreadLocal<TxContext> contexts = new ThreadLocal<>();
+    private final boolean reuse;
+
+    TxContexts(boolean reuse) {
+        this.reuse = reuse;
+    }
+
+    /**
+     * @return {@code true} if thread keeps its context for the next transaction
+     */
+    boolean isReused() {
+        return reuse;
+    }
+
+    /**
+     * @return context bound to current thread, or {@code null}
+     */
+    TxContext get() {
+        return contexts.get();
+    }
+
+    /**
+     * @param current context bound to current thread (not active), or {@code null}
+     * @return context to begin new transaction with, bound to current thread
+     */
+    TxContext bind(TxContext current) {
+        if (current != null) {
+            return current;
+        }
+        TxContext ctx = new TxContext(this);
+        contexts.set(ctx);
+        return ctx;
+    }
+
+    /**
+     * Called once transaction of context has ended.
+     */
+    void unbind(TxContext ctx) {
+        if (!reuse && contexts.get() == ctx) {
+            contexts.remove();
+        }
+    }
+
+    /**
+     * Binds context of other thread to current thread.
+     * @return context previously bound to current thread, to be passed to {@link #detach(TxContext)}
+     */
+    TxContext attach(TxContext ctx) {
+        TxContext previous = contexts.get();
+        contexts.set(ctx);
+        return previous;
+    }
+
+    void detach(TxContext previous) {
+        if (previous == null) {
+            contexts.remove();
+        } else {
+            contexts.set(previous);
+        }
+    }
+}
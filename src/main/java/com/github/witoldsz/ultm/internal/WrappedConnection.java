@@ -1,5 +1,6 @@
 package com.github.witoldsz.ultm.internal;
 
+import java.lang.reflect.Proxy;
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.CallableStatement;
@@ -8,16 +9,23 @@ import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.NClob;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLClientInfoException;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.SQLWarning;
 import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import com.github.witoldsz.ultm.StatementLeak;
 
 /**
  *
@@ -25,20 +33,336 @@ import java.util.concurrent.Executor;
  */
 public class WrappedConnection implements Connection {
 
-    private final Connection delegate;
+    private static final Connection RETIRED = (Connection) Proxy.newProxyInstance(
+        WrappedConnection.class.getClassLoader(), new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("isClosed")) return true;
+            throw new SQLException("Connection is closed.");
+        });
+
+    private Connection delegate;
+    private Thread owner;
+    private Predicate<String> modifyingSql;
+    private boolean modified;
+    private int generation;
+    private StatementCache statementCache;
+    private int maxBatchSize;
+    private WrappedPreparedStatement<?> pendingBatch;
+    private int pendingBatchSize;
+    private boolean timed;
+    private long deadline;
+    private List<WrappedStatement<?>> openStatements;
+    private boolean captureOpenedAt;
+    private boolean wrapStatements = true;
+
+    private TxContexts contexts;
 
     public WrappedConnection(Connection delegate) {
-        this.delegate = delegate;
+        this.delegate = delegate == null ? RETIRED : delegate;
     }
 
+    /**
+     * Wrapper reused by every transaction of context, usable only by threads taking part in the transaction:
+     * its owner and those which joined it, see {@link #delegate()}.
+     */
+    WrappedConnection(TxContexts contexts) {
+        this((Connection) null);
+        this.contexts = contexts;
+    }
+
+    /**
+     * @return raw connection, {@code null} if none is acquired
+     */
     public Connection getDelegate() {
-        return delegate;
+        return delegate == RETIRED ? null : delegate;
+    }
+
+    /**
+     * @param delegate raw connection acquired, {@code null} once it has been released, so that wrapper kept
+     * after transaction is closed until the next one acquires its connection
+     */
+    void setDelegate(Connection delegate) {
+        this.delegate = delegate == null ? RETIRED : delegate;
+        this.modified = false;
+        this.generation++;
+        this.pendingBatch = null;
+        this.pendingBatchSize = 0;
+    }
+
+    /**
+     * Wrapper is reused, so a thread which kept it after transaction could reach connection of the next one.
+     * Threads other than the owner get closed connection then, unless they have joined the transaction.
+     */
+    private Connection delegate() {
+        if (owner == Thread.currentThread() || contexts == null) return delegate;
+        TxContext joined = contexts.get();
+        return joined != null && joined.connection == this ? delegate : RETIRED;
+    }
+
+    void setOwner(Thread owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Connection can be shared with other threads, see {@link com.github.witoldsz.ultm.TxManager#propagate(Runnable)},
+     * but only the thread which began the transaction can cache statements, batch updates and finish it.
+     */
+    boolean isOwner() {
+        return owner == Thread.currentThread();
+    }
+
+    /**
+     * @return number telling apart transactions run by this (reused) wrapper
+     */
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @param size maximum number of idle prepared statements kept until the end of transaction, 0 to disable
+     */
+    void setStatementCacheSize(int size) {
+        if (size <= 0) {
+            statementCache = null;
+        } else if (statementCache == null || statementCache.getMaxSize() != size) {
+            statementCache = new StatementCache(size);
+        }
+    }
+
+    /**
+     * Called when prepared statement gets closed, to keep it for reuse within same transaction.
+     * @return {@code true} if statement was cached and must not be closed
+     */
+    @SuppressWarnings("unchecked")
+    boolean recycle(WrappedPreparedStatement<?> statement) throws SQLException {
+        if (statementCache == null || !statement.isCacheable() || statement.getGeneration() != generation
+                || !isOwner()) {
+            return false;
+        }
+        PreparedStatement raw = statement.getDelegate();
+        raw.clearParameters();
+        if (pendingBatch != statement) raw.clearBatch(); // otherwise batch goes on, even if statement was closed
+        raw.clearWarnings();
+        return statementCache.offer((WrappedPreparedStatement<PreparedStatement>) statement);
+    }
+
+    /**
+     * Really closes the cached statements, must be called when transaction ends.
+     */
+    void closeCachedStatements() throws SQLException {
+        if (statementCache != null) statementCache.closeAll();
+    }
+
+    /**
+     * @param size maximum number of updates batched automatically, 0 to disable
+     * @see #batch(WrappedPreparedStatement)
+     */
+    void setMaxBatchSize(int size) {
+        this.maxBatchSize = size;
+    }
+
+    /**
+     * Adds parameters of statement to batch instead of executing it. The batch is executed when it gets full,
+     * when anything else is about to be executed and before the commit.
+     * @return {@code false} if automatic batching is disabled, so statement should be executed as usual
+     */
+    boolean batch(WrappedPreparedStatement<?> statement) throws SQLException {
+        if (maxBatchSize <= 0 || !isOwner()) {
+            return false;
+        }
+        if (pendingBatch != statement) {
+            flushBatch();
+        }
+        markModified();
+        statement.getDelegate().addBatch();
+        pendingBatch = statement;
+        if (++pendingBatchSize >= maxBatchSize) {
+            flushBatch();
+        }
+        return true;
+    }
+
+    /**
+     * Executes updates batched so far, if there are any.
+     */
+    void flushBatch() throws SQLException {
+        if (pendingBatch != null) {
+            PreparedStatement statement = pendingBatch.getDelegate();
+            pendingBatch = null;
+            pendingBatchSize = 0;
+            statement.executeBatch();
+        }
+    }
+
+    void flushBatch(WrappedPreparedStatement<?> statement) throws SQLException {
+        if (pendingBatch == statement) flushBatch();
+    }
+
+    /**
+     * Forgets updates batched so far, there is no need to execute them when rolling back.
+     */
+    void discardBatch() throws SQLException {
+        if (pendingBatch != null) {
+            PreparedStatement statement = pendingBatch.getDelegate();
+            pendingBatch = null;
+            pendingBatchSize = 0;
+            statement.clearBatch();
+        }
+    }
+
+    /**
+     * @param timed if transaction has a deadline, see {@link #timed(Statement)}
+     * @param deadline {@link System#nanoTime()} at which transaction times out
+     */
+    void setDeadline(boolean timed, long deadline) {
+        this.timed = timed;
+        this.deadline = deadline;
+    }
+
+    boolean isTimed() {
+        return timed;
+    }
+
+    /**
+     * @return nanoseconds left until deadline, not positive if it is exceeded
+     */
+    long remainingNanos() {
+        return deadline - System.nanoTime();
+    }
+
+    boolean isTimedOut() {
+        return timed && remainingNanos() <= 0;
+    }
+
+    /**
+     * Sets query timeout of raw statement to the time transaction has left. It does not go through the wrapper,
+     * so statements stay cacheable, see {@link WrappedPreparedStatement#isCacheable()}.
+     */
+    private <S extends Statement> S timed(S statement) throws SQLException {
+        if (timed) {
+            long remaining = remainingNanos();
+            if (remaining <= 0) {
+                statement.close();
+                throw new SQLTimeoutException("Transaction timed out.");
+            }
+            statement.setQueryTimeout((int) Math.min(Integer.MAX_VALUE, (remaining + 999_999_999) / 1_000_000_000));
+        }
+        return statement;
+    }
+
+    /**
+     * Statements are tracked only when created by the owner of connection, other threads joining
+     * the transaction are on their own.
+     * @param track if statements left open should be closed by {@link #closeLeakedStatements(Consumer)}
+     * @param captureOpenedAt if stack trace should be captured for every statement opened
+     */
+    void setLeakTracking(boolean track, boolean captureOpenedAt) {
+        if (!track) {
+            openStatements = null;
+        } else if (openStatements == null) {
+            openStatements = new ArrayList<>();
+        }
+        this.captureOpenedAt = captureOpenedAt;
+    }
+
+    /**
+     * Statements are wrapped only to tell transactions which modified data apart, to cache, batch or track them.
+     * When none of it is needed, driver's own statements are handed out, with nothing but query timeout applied.
+     */
+    void setWrapStatements(boolean wrap) {
+        this.wrapStatements = wrap;
+    }
+
+    private <W extends WrappedStatement<?>> W tracked(W statement) {
+        if (openStatements != null && isOwner()) {
+            openStatements.add(statement);
+            if (captureOpenedAt) statement.openedAt = new Throwable("Statement opened here");
+        }
+        return statement;
+    }
+
+    /**
+     * Statements are usually closed in reverse order, hence searching from the end.
+     */
+    void untrack(WrappedStatement<?> statement) {
+        if (openStatements == null || !isOwner()) return;
+        for (int i = openStatements.size() - 1; i >= 0; --i) {
+            if (openStatements.get(i) == statement) {
+                openStatements.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes statements left open, which closes their result sets too, must be called when transaction ends.
+     * @param listener gets every statement left open, its failure does not stop the others from being closed
+     */
+    void closeLeakedStatements(Consumer<StatementLeak> listener) {
+        if (openStatements == null || openStatements.isEmpty()) return;
+        for (WrappedStatement<?> statement : openStatements) {
+            try {
+                statement.getDelegate().close();
+            } catch (SQLException ex) {
+                // it was leaked anyway
+            }
+            try {
+                listener.accept(new StatementLeak(statement.getSql(), statement.openedAt));
+            } catch (RuntimeException ex) {
+                // must not affect the transaction
+            }
+        }
+        openStatements.clear();
+    }
+
+    private StatementKey statementKey(String sql, int resultSetType, int resultSetConcurrency,
+            int resultSetHoldability, int autoGeneratedKeys, int[] columnIndexes, String[] columnNames) {
+        return statementCache == null || !isOwner() ? null : new StatementKey(sql, resultSetType, resultSetConcurrency,
+            resultSetHoldability, autoGeneratedKeys, columnIndexes, columnNames);
+    }
+
+    private PreparedStatement cached(StatementKey key) throws SQLException {
+        if (key == null) return null;
+        WrappedPreparedStatement<PreparedStatement> statement = statementCache.take(key);
+        if (statement != null) {
+            statement.reopen();
+            timed(statement.getDelegate());
+            tracked(statement);
+        }
+        return statement;
+    }
+
+    private PreparedStatement prepared(PreparedStatement statement, String sql, StatementKey key, boolean batchable) {
+        return tracked(new WrappedPreparedStatement<>(this, statement, sql, key, generation, batchable));
+    }
+
+    /**
+     * @param modifyingSql tells if SQL run by {@code execute} could modify data, {@code null} means it always could
+     */
+    void setModifyingSql(Predicate<String> modifyingSql) {
+        this.modifyingSql = modifyingSql;
+    }
+
+    /**
+     * @return {@code false} when nothing but queries were executed, so there is nothing to commit
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    void markModified() {
+        modified = true;
+    }
+
+    void mayModify(String sql) {
+        if (!modified && (modifyingSql == null || modifyingSql.test(sql))) {
+            modified = true;
+        }
     }
 
     @Override
     public void setAutoCommit(boolean autoCommit) throws SQLException {
         if (autoCommit) throw new UnsupportedOperationException("autoCommit cannot be enabled");
-        delegate.setAutoCommit(false);
+        delegate().setAutoCommit(false);
     }
 
     @Override
@@ -77,239 +401,269 @@ public class WrappedConnection implements Connection {
     }
 
     @Override
-    public <T> T unwrap(Class<T> iface) throws SQLException {
-        return getClass().isAssignableFrom(iface) ? iface.cast(this) : delegate.unwrap(iface);
+    public Statement createStatement() throws SQLException {
+        Statement statement = timed(delegate().createStatement());
+        return wrapStatements ? tracked(new WrappedStatement<>(this, statement)) : statement;
     }
 
     @Override
-    public boolean isWrapperFor(Class<?> iface) throws SQLException {
-        return getClass().isAssignableFrom(iface) ? true : delegate.isWrapperFor(iface);
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        if (!wrapStatements) return timed(delegate().prepareStatement(sql));
+        StatementKey key = statementKey(sql, 0, 0, 0, 0, null, null);
+        PreparedStatement cached = cached(key);
+        return cached != null ? cached : prepared(timed(delegate().prepareStatement(sql)), sql, key, true);
     }
 
-    //
-    //
-    // delegate what's left (auto-generated)
-    //
-    //
-
     @Override
-    public Statement createStatement() throws SQLException {
-        return delegate.createStatement();
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        CallableStatement statement = timed(delegate().prepareCall(sql));
+        return wrapStatements ? tracked(new WrappedCallableStatement(this, statement, sql)) : statement;
     }
 
     @Override
-    public PreparedStatement prepareStatement(String sql) throws SQLException {
-        return delegate.prepareStatement(sql);
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        if (resultSetConcurrency == ResultSet.CONCUR_UPDATABLE) markModified();
+        Statement statement = timed(delegate().createStatement(resultSetType, resultSetConcurrency));
+        return wrapStatements ? tracked(new WrappedStatement<>(this, statement)) : statement;
     }
 
     @Override
-    public CallableStatement prepareCall(String sql) throws SQLException {
-        return delegate.prepareCall(sql);
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        if (resultSetConcurrency == ResultSet.CONCUR_UPDATABLE) markModified();
+        if (!wrapStatements) return timed(delegate().prepareStatement(sql, resultSetType, resultSetConcurrency));
+        StatementKey key = statementKey(sql, resultSetType, resultSetConcurrency, 0, 0, null, null);
+        PreparedStatement cached = cached(key);
+        return cached != null ? cached : prepared(timed(delegate().prepareStatement(sql, resultSetType, resultSetConcurrency)), sql, key, true);
     }
 
     @Override
-    public String nativeSQL(String sql) throws SQLException {
-        return delegate.nativeSQL(sql);
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        if (resultSetConcurrency == ResultSet.CONCUR_UPDATABLE) markModified();
+        CallableStatement statement = timed(delegate().prepareCall(sql, resultSetType, resultSetConcurrency));
+        return wrapStatements ? tracked(new WrappedCallableStatement(this, statement, sql)) : statement;
     }
 
     @Override
-    public boolean getAutoCommit() throws SQLException {
-        return delegate.getAutoCommit();
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        if (resultSetConcurrency == ResultSet.CONCUR_UPDATABLE) markModified();
+        Statement statement = timed(delegate().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability));
+        return wrapStatements ? tracked(new WrappedStatement<>(this, statement)) : statement;
     }
 
     @Override
-    public boolean isClosed() throws SQLException {
-        return delegate.isClosed();
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        if (resultSetConcurrency == ResultSet.CONCUR_UPDATABLE) markModified();
+        if (!wrapStatements) return timed(delegate().prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+        StatementKey key = statementKey(sql, resultSetType, resultSetConcurrency, resultSetHoldability, 0, null, null);
+        PreparedStatement cached = cached(key);
+        return cached != null ? cached : prepared(timed(delegate().prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability)), sql, key, true);
     }
 
     @Override
-    public DatabaseMetaData getMetaData() throws SQLException {
-        return delegate.getMetaData();
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        if (resultSetConcurrency == ResultSet.CONCUR_UPDATABLE) markModified();
+        CallableStatement statement = timed(delegate().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+        return wrapStatements ? tracked(new WrappedCallableStatement(this, statement, sql)) : statement;
     }
 
     @Override
-    public void setReadOnly(boolean readOnly) throws SQLException {
-        delegate.setReadOnly(readOnly);
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        if (!wrapStatements) return timed(delegate().prepareStatement(sql, autoGeneratedKeys));
+        StatementKey key = statementKey(sql, 0, 0, 0, autoGeneratedKeys, null, null);
+        PreparedStatement cached = cached(key);
+        return cached != null ? cached : prepared(timed(delegate().prepareStatement(sql, autoGeneratedKeys)), sql, key, false);
     }
 
     @Override
-    public boolean isReadOnly() throws SQLException {
-        return delegate.isReadOnly();
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        if (!wrapStatements) return timed(delegate().prepareStatement(sql, columnIndexes));
+        StatementKey key = statementKey(sql, 0, 0, 0, 0, columnIndexes, null);
+        PreparedStatement cached = cached(key);
+        return cached != null ? cached : prepared(timed(delegate().prepareStatement(sql, columnIndexes)), sql, key, false);
     }
 
     @Override
-    public void setCatalog(String catalog) throws SQLException {
-        delegate.setCatalog(catalog);
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        if (!wrapStatements) return timed(delegate().prepareStatement(sql, columnNames));
+        StatementKey key = statementKey(sql, 0, 0, 0, 0, null, columnNames);
+        PreparedStatement cached = cached(key);
+        return cached != null ? cached : prepared(timed(delegate().prepareStatement(sql, columnNames)), sql, key, false);
     }
 
     @Override
-    public String getCatalog() throws SQLException {
-        return delegate.getCatalog();
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return getClass().isAssignableFrom(iface) ? iface.cast(this) : delegate().unwrap(iface);
     }
 
     @Override
-    public void setTransactionIsolation(int level) throws SQLException {
-        delegate.setTransactionIsolation(level);
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return getClass().isAssignableFrom(iface) ? true : delegate().isWrapperFor(iface);
     }
 
+    //
+    //
+    // delegate what's left (auto-generated)
+    //
+    //
+
     @Override
-    public int getTransactionIsolation() throws SQLException {
-        return delegate.getTransactionIsolation();
+    public String nativeSQL(String sql) throws SQLException {
+        return delegate().nativeSQL(sql);
     }
 
     @Override
-    public SQLWarning getWarnings() throws SQLException {
-        return delegate.getWarnings();
+    public boolean getAutoCommit() throws SQLException {
+        return delegate().getAutoCommit();
     }
 
     @Override
-    public void clearWarnings() throws SQLException {
-        delegate.clearWarnings();
+    public boolean isClosed() throws SQLException {
+        return delegate().isClosed();
     }
 
     @Override
-    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
-        return delegate.createStatement(resultSetType, resultSetConcurrency);
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return delegate().getMetaData();
     }
 
     @Override
-    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
-        return delegate.prepareStatement(sql, resultSetType, resultSetConcurrency);
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        delegate().setReadOnly(readOnly);
     }
 
     @Override
-    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
-        return delegate.prepareCall(sql, resultSetType, resultSetConcurrency);
+    public boolean isReadOnly() throws SQLException {
+        return delegate().isReadOnly();
     }
 
     @Override
-    public Map<String, Class<?>> getTypeMap() throws SQLException {
-        return delegate.getTypeMap();
+    public void setCatalog(String catalog) throws SQLException {
+        delegate().setCatalog(catalog);
     }
 
     @Override
-    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
-        delegate.setTypeMap(map);
+    public String getCatalog() throws SQLException {
+        return delegate().getCatalog();
     }
 
     @Override
-    public void setHoldability(int holdability) throws SQLException {
-        delegate.setHoldability(holdability);
+    public void setTransactionIsolation(int level) throws SQLException {
+        delegate().setTransactionIsolation(level);
     }
 
     @Override
-    public int getHoldability() throws SQLException {
-        return delegate.getHoldability();
+    public int getTransactionIsolation() throws SQLException {
+        return delegate().getTransactionIsolation();
     }
 
     @Override
-    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        return delegate.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+    public SQLWarning getWarnings() throws SQLException {
+        return delegate().getWarnings();
     }
 
     @Override
-    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        return delegate.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    public void clearWarnings() throws SQLException {
+        delegate().clearWarnings();
     }
 
     @Override
-    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        return delegate.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return delegate().getTypeMap();
     }
 
     @Override
-    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
-        return delegate.prepareStatement(sql, autoGeneratedKeys);
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        delegate().setTypeMap(map);
     }
 
     @Override
-    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
-        return delegate.prepareStatement(sql, columnIndexes);
+    public void setHoldability(int holdability) throws SQLException {
+        delegate().setHoldability(holdability);
     }
 
     @Override
-    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
-        return delegate.prepareStatement(sql, columnNames);
+    public int getHoldability() throws SQLException {
+        return delegate().getHoldability();
     }
 
     @Override
     public Clob createClob() throws SQLException {
-        return delegate.createClob();
+        return delegate().createClob();
     }
 
     @Override
     public Blob createBlob() throws SQLException {
-        return delegate.createBlob();
+        return delegate().createBlob();
     }
 
     @Override
     public NClob createNClob() throws SQLException {
-        return delegate.createNClob();
+        return delegate().createNClob();
     }
 
     @Override
     public SQLXML createSQLXML() throws SQLException {
-        return delegate.createSQLXML();
+        return delegate().createSQLXML();
     }
 
     @Override
     public boolean isValid(int timeout) throws SQLException {
-        return delegate.isValid(timeout);
+        return delegate().isValid(timeout);
     }
 
     @Override
     public void setClientInfo(String name, String value) throws SQLClientInfoException {
-        delegate.setClientInfo(name, value);
+        delegate().setClientInfo(name, value);
     }
 
     @Override
     public void setClientInfo(Properties properties) throws SQLClientInfoException {
-        delegate.setClientInfo(properties);
+        delegate().setClientInfo(properties);
     }
 
     @Override
     public String getClientInfo(String name) throws SQLException {
-        return delegate.getClientInfo(name);
+        return delegate().getClientInfo(name);
     }
 
     @Override
     public Properties getClientInfo() throws SQLException {
-        return delegate.getClientInfo();
+        return delegate().getClientInfo();
     }
 
     @Override
     public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
-        return delegate.createArrayOf(typeName, elements);
+        return delegate().createArrayOf(typeName, elements);
     }
 
     @Override
     public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
-        return delegate.createStruct(typeName, attributes);
+        return delegate().createStruct(typeName, attributes);
     }
 
     @Override
     public void setSchema(String schema) throws SQLException {
-        delegate.setSchema(schema);
+        delegate().setSchema(schema);
     }
 
     @Override
     public String getSchema() throws SQLException {
-        return delegate.getSchema();
+        return delegate().getSchema();
     }
 
     @Override
     public void abort(Executor executor) throws SQLException {
-        delegate.abort(executor);
+        delegate().abort(executor);
     }
 
     @Override
     public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
-        delegate.setNetworkTimeout(executor, milliseconds);
+        delegate().setNetworkTimeout(executor, milliseconds);
     }
 
     @Override
     public int getNetworkTimeout() throws SQLException {
-        return delegate.getNetworkTimeout();
+        return delegate().getNetworkTimeout();
     }
 
 }
@@ -0,0 +1,103 @@
+package com.github.witoldsz.ultm.metrics;
+
+import com.github.witoldsz.ultm.TxMetrics;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records transaction timings in {@link LatencyHistogram}s and counts transactions in flight
+ * and the ones which never touched the database.
+ *
+ * @author witoldsz
+ */
+public class HistogramTxMetrics implements TxMetrics {
+
+    private final LatencyHistogram connectionAcquisition = new LatencyHistogram();
+    private final LatencyHistogram unitExecution = new LatencyHistogram();
+    private final LatencyHistogram commit = new LatencyHistogram();
+    private final LatencyHistogram rollback = new LatencyHistogram();
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder finished = new LongAdder();
+    private final LongAdder finishedWithoutConnection = new LongAdder();
+
+    @Override
+    public void begun() {
+        inFlight.increment();
+    }
+
+    @Override
+    public void connectionAcquired(long nanos) {
+        connectionAcquisition.record(nanos);
+    }
+
+    @Override
+    public void committed(long unitNanos, long commitNanos) {
+        finished(unitNanos);
+        commit.record(commitNanos);
+    }
+
+    @Override
+    public void rolledBack(long unitNanos, long rollbackNanos) {
+        finished(unitNanos);
+        rollback.record(rollbackNanos);
+    }
+
+    @Override
+    public void finishedWithoutConnection(long unitNanos) {
+        finished(unitNanos);
+        finishedWithoutConnection.increment();
+    }
+
+    private void finished(long unitNanos) {
+        inFlight.decrement();
+        finished.increment();
+        unitExecution.record(unitNanos);
+    }
+
+    /**
+     * @return time spent waiting for connections from the (raw) data source, that is the connection pool
+     */
+    public LatencyHistogram getConnectionAcquisition() {
+        return connectionAcquisition;
+    }
+
+    /**
+     * @return time from begin to commit or rollback
+     */
+    public LatencyHistogram getUnitExecution() {
+        return unitExecution;
+    }
+
+    /**
+     * @return time of commits, including release of connection
+     */
+    public LatencyHistogram getCommit() {
+        return commit;
+    }
+
+    /**
+     * @return time of rollbacks, including release of connection
+     */
+    public LatencyHistogram getRollback() {
+        return rollback;
+    }
+
+    public long getInFlight() {
+        return inFlight.sum();
+    }
+
+    public long getFinished() {
+        return finished.sum();
+    }
+
+    public long getFinishedWithoutConnection() {
+        return finishedWithoutConnection.sum();
+    }
+
+    /**
+     * @return part of finished transactions which did acquire a connection, from 0 to 1
+     */
+    public double getConnectionAcquiredRatio() {
+        long all = finished.sum();
+        return all == 0 ? 0 : 1 - (double) finishedWithoutConnection.sum() / all;
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.witoldsz.ultm.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values (e.g. nanoseconds), in the spirit of HdrHistogram: buckets grow
+ * exponentially and each one is split linearly into 32 sub-buckets, so any value is reported with
+ * at most ~3% error, while the whole {@code long} range takes less than 2 000 counters.
+ * Recording is wait-free for practical purposes: a few atomic increments and no allocation.
+ *
+ * @author witoldsz
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final int COUNTERS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(COUNTERS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        long v = Math.max(value, 0);
+        counts.incrementAndGet(indexOf(v));
+        count.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param percentile from 0 to 100, e.g. 99.9
+     * @return value (middle of the bucket) below or at which given percentage of recorded values are,
+     * or 0 if there are none
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[COUNTERS];
+        for (int i = 0; i < COUNTERS; ++i) {
+            total += snapshot[i] = counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < COUNTERS; ++i) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(middleValueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        int sub = (int) (value >>> shift) - HALF_SUB_BUCKETS;
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + sub;
+    }
+
+    static long middleValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int i = index - SUB_BUCKETS;
+        int shift = i / HALF_SUB_BUCKETS + 1;
+        long lowest = (long) (HALF_SUB_BUCKETS + i % HALF_SUB_BUCKETS) << shift;
+        return lowest + (1L << (shift - 1));
+    }
+}
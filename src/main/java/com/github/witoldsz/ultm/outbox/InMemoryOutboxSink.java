@@ -0,0 +1,30 @@
+package com.github.witoldsz.ultm.outbox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sink keeping published messages in memory, meant for tests.
+ *
+ * @author witoldsz
+ */
+public class InMemoryOutboxSink implements OutboxSink {
+
+    private final List<OutboxMessage> messages = new ArrayList<>();
+
+    @Override
+    public synchronized void publish(List<OutboxMessage> batch) {
+        messages.addAll(batch);
+    }
+
+    /**
+     * @return copy of messages published so far
+     */
+    public synchronized List<OutboxMessage> getMessages() {
+        return new ArrayList<>(messages);
+    }
+
+    public synchronized void clear() {
+        messages.clear();
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.witoldsz.ultm.outbox;
+
+import com.github.witoldsz.ultm.TxManager;
+import com.github.witoldsz.ultm.ULTM;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sql.DataSource;
+
+/**
+ * Transactional outbox: messages appended within transaction are written to the outbox table when (and only if)
+ * transaction commits, all of them at once, by multi-row inserts right before the commit. Then
+ * {@link OutboxRelay} publishes them, so they get published if and only if transaction committed.
+ * Messages appended by {@link com.github.witoldsz.ultm.Propagation#NESTED} unit which has been rolled back
+ * are not written.
+ * <p>
+ * Table needs {@code ID} column generated by database in increasing order, {@code TOPIC} and {@code PAYLOAD},
+ * e.g. {@code create table OUTBOX (ID bigint auto_increment primary key, TOPIC varchar(255), PAYLOAD clob)}.
+ *
+ * @author witoldsz
+ */
+public class Outbox {
+
+    private static final int MAX_ROWS_PER_INSERT = 256;
+
+    private final TxManager txManager;
+    private final DataSource managedDataSource;
+    private final String table;
+    private final String fullInsertSql;
+
+    /**
+     * @param ultm transaction manager the outbox takes part in
+     * @param table name of outbox table
+     */
+    public Outbox(ULTM ultm, String table) {
+        this.txManager = ultm.getTxManager();
+        this.managedDataSource = ultm.getManagedDataSource();
+        this.table = table;
+        this.fullInsertSql = insertSql(MAX_ROWS_PER_INSERT);
+    }
+
+    /**
+     * Must be called within transaction, from its thread.
+     * @param topic where message should be published
+     * @param payload content of message
+     * @throws IllegalStateException when no transaction is in progress.
+     */
+    public void append(String topic, String payload) {
+        Pending pending = txManager.getTxResource(this, Pending::new);
+        txManager.onBeforeCommit(() -> pend(pending, topic, payload));
+    }
+
+    /**
+     * Message becomes pending by before-commit callback of its own, which is forgotten together with nested unit
+     * which has been rolled back. Flush is scheduled after the callbacks registered so far, so it writes
+     * all of their messages at once.
+     */
+    private void pend(Pending pending, String topic, String payload) {
+        if (!pending.flushScheduled) {
+            pending.flushScheduled = true;
+            txManager.onBeforeCommit(() -> flush(pending));
+        }
+        pending.topics.add(topic);
+        pending.payloads.add(payload);
+    }
+
+    /**
+     * Other before-commit callbacks can append messages after the flush, they are flushed by the next one.
+     */
+    private void flush(Pending pending) throws SQLException {
+        pending.flushScheduled = false;
+        int size = pending.topics.size();
+        try (Connection conn = managedDataSource.getConnection()) {
+            for (int from = 0; from < size; from += MAX_ROWS_PER_INSERT) {
+                int rows = Math.min(MAX_ROWS_PER_INSERT, size - from);
+                String sql = rows == MAX_ROWS_PER_INSERT ? fullInsertSql : insertSql(rows);
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    for (int i = 0; i < rows; ++i) {
+                        stmt.setString(2 * i + 1, pending.topics.get(from + i));
+                        stmt.setString(2 * i + 2, pending.payloads.get(from + i));
+                    }
+                    stmt.executeUpdate();
+                }
+            }
+        }
+        pending.topics.clear();
+        pending.payloads.clear();
+    }
+
+    private String insertSql(int rows) {
+        StringBuilder sql = new StringBuilder("insert into ").append(table).append(" (TOPIC, PAYLOAD) values (?, ?)");
+        for (int i = 1; i < rows; ++i) {
+            sql.append(", (?, ?)");
+        }
+        return sql.toString();
+    }
+
+    private static class Pending {
+        final List<String> topics = new ArrayList<>();
+        final List<String> payloads = new ArrayList<>();
+        boolean flushScheduled;
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.witoldsz.ultm.outbox;
+
+/**
+ * Message committed to the outbox table.
+ *
+ * @author witoldsz
+ */
+public final class OutboxMessage {
+
+    private final long id;
+    private final String topic;
+    private final String payload;
+
+    public OutboxMessage(long id, String topic, String payload) {
+        this.id = id;
+        this.topic = topic;
+        this.payload = payload;
+    }
+
+    /**
+     * @return id given by database, increasing, but not necessarily in the order of commits
+     */
+    public long getId() {
+        return id;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    @Override
+    public String toString() {
+        return "OutboxMessage{id=" + id + ", topic=" + topic + ", payload=" + payload + '}';
+    }
+}
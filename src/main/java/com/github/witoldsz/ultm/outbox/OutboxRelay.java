@@ -0,0 +1,111 @@
+package com.github.witoldsz.ultm.outbox;
+
+import com.github.witoldsz.ultm.TxManager;
+import com.github.witoldsz.ultm.ULTM;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import javax.sql.DataSource;
+
+/**
+ * Publishes messages committed to the table of {@link Outbox}, in batches and in order of ids, deleting the
+ * published ones in the same transaction. Delivery is at-least-once: messages published by the sink stay in the
+ * table when transaction fails to commit. There should be one relay per table.
+ *
+ * @author witoldsz
+ */
+public class OutboxRelay implements AutoCloseable {
+
+    private final TxManager txManager;
+    private final DataSource managedDataSource;
+    private final OutboxSink sink;
+    private final int batchSize;
+    private final String selectSql;
+    private final String deleteSql;
+    private ScheduledThreadPoolExecutor poller;
+
+    /**
+     * @param ultm transaction manager of outbox table's database
+     * @param table name of outbox table
+     * @param sink destination of messages
+     * @param batchSize maximum number of messages published at once
+     */
+    public OutboxRelay(ULTM ultm, String table, OutboxSink sink, int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("Batch size must be positive.");
+        this.txManager = ultm.getTxManager();
+        this.managedDataSource = ultm.getManagedDataSource();
+        this.sink = sink;
+        this.batchSize = batchSize;
+        this.selectSql = "select ID, TOPIC, PAYLOAD from " + table + " order by ID";
+        this.deleteSql = "delete from " + table + " where ID = ?";
+    }
+
+    /**
+     * Publishes one batch, within transaction.
+     * @return number of messages published
+     * @throws com.github.witoldsz.ultm.UnitOfWorkException when reading the table or publishing failed
+     */
+    public int relay() {
+        return txManager.txResult(() -> {
+            try (Connection conn = managedDataSource.getConnection()) {
+                List<OutboxMessage> batch = new ArrayList<>();
+                try (PreparedStatement select = conn.prepareStatement(selectSql)) {
+                    select.setMaxRows(batchSize);
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            batch.add(new OutboxMessage(rs.getLong(1), rs.getString(2), rs.getString(3)));
+                        }
+                    }
+                }
+                if (batch.isEmpty()) return 0;
+                sink.publish(batch);
+                try (PreparedStatement delete = conn.prepareStatement(deleteSql)) {
+                    for (OutboxMessage message : batch) {
+                        delete.setLong(1, message.getId());
+                        delete.addBatch();
+                    }
+                    delete.executeBatch();
+                }
+                return batch.size();
+            }
+        });
+    }
+
+    /**
+     * Starts polling the table on a daemon thread. Each poll relays batches until the table is drained.
+     * @param pollInterval time between polls
+     */
+    public synchronized void start(Duration pollInterval) {
+        if (poller != null) throw new IllegalStateException("Relay is started already.");
+        poller = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "ultm-outbox-relay");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = pollInterval.toNanos();
+        poller.scheduleWithFixedDelay(this::poll, 0, interval, NANOSECONDS);
+    }
+
+    private void poll() {
+        try {
+            while (relay() == batchSize) {
+                // keep draining
+            }
+        } catch (RuntimeException ex) {
+            // messages stay in the table, next poll tries again
+        }
+    }
+
+    /**
+     * Stops polling, batch being relayed is finished first.
+     */
+    @Override
+    public synchronized void close() {
+        if (poller != null) poller.shutdown();
+    }
+}
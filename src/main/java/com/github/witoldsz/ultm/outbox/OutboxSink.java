@@ -0,0 +1,21 @@
+package com.github.witoldsz.ultm.outbox;
+
+import java.util.List;
+
+/**
+ * Destination of messages relayed by {@link OutboxRelay}, e.g. a message broker.
+ *
+ * @author witoldsz
+ */
+@FunctionalInterface
+public interface OutboxSink {
+
+    /**
+     * Messages are deleted from the outbox once this returns, so it must not return before they are safe.
+     * Failure leaves them in the outbox, to be published again, so some may end up published more than once.
+     *
+     * @param messages batch of messages, in order of their ids
+     * @throws Exception when messages could not be published
+     */
+    void publish(List<OutboxMessage> messages) throws Exception;
+}
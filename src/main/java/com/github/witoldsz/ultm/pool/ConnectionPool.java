@@ -0,0 +1,288 @@
+package com.github.witoldsz.ultm.pool;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import javax.sql.DataSource;
+
+/**
+ * Small connection pool to put behind {@link com.github.witoldsz.ultm.ULTM}, which detects it and skips
+ * {@code getAutoCommit()} check, because pooled connections have auto-commit disabled once, when created.
+ * <p>
+ * Pool does not reset connections when they come back, it relies on the user to restore settings, like ULTM does.
+ * The only exception is auto-commit, which is disabled again if it was enabled, since ULTM counts on that.
+ * Connections with transactions left unfinished (statements created, metadata read etc. since the last successful
+ * commit or rollback) are rolled back. Connections which cannot be reset or rolled back are discarded. It validates connections only when they were idle for a while
+ * and each thread gets the connection it used last, if it is idle, which keeps it warm in caches.
+ * Threads waiting for connections are served in order of arrival.
+ * <p>
+ * Settings should be set before pool is used.
+ *
+ * @author witoldsz
+ */
+public class ConnectionPool implements DataSource, AutoCloseable {
+
+    private final DataSource physicalDataSource;
+    private final int maxSize;
+    private final Semaphore permits;
+    private final AtomicInteger size = new AtomicInteger();
+    private final ThreadLocal<PoolEntry> lastUsed = new ThreadLocal<>();
+    private volatile PoolEntry[] entries = new PoolEntry[0];
+    private volatile boolean closed;
+    private long connectionTimeoutNanos = SECONDS.toNanos(30);
+    private long validationIdleNanos = SECONDS.toNanos(1);
+    private int validationTimeoutSeconds = 5;
+
+    /**
+     * @param physicalDataSource source of physical connections, e.g. driver's own data source
+     * @param maxSize maximum number of physical connections
+     */
+    public ConnectionPool(DataSource physicalDataSource, int maxSize) {
+        if (maxSize < 1) throw new IllegalArgumentException("Pool size must be positive.");
+        this.physicalDataSource = physicalDataSource;
+        this.maxSize = maxSize;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * @param timeout how long to wait for a connection when all are in use, 30s by default
+     */
+    public void setConnectionTimeout(Duration timeout) {
+        this.connectionTimeoutNanos = timeout.toNanos();
+    }
+
+    /**
+     * @param idleTime how long connection can stay idle before it is validated on checkout, 1s by default
+     */
+    public void setValidationIdleTime(Duration idleTime) {
+        this.validationIdleNanos = idleTime.toNanos();
+    }
+
+    /**
+     * @param timeout see {@link Connection#isValid(int)}, rounded up to seconds, 5s by default
+     */
+    public void setValidationTimeout(Duration timeout) {
+        this.validationTimeoutSeconds = (int) Math.min(Integer.MAX_VALUE, (timeout.toMillis() + 999) / 1000);
+    }
+
+    /**
+     * @return number of physical connections, idle or not
+     */
+    public int getSize() {
+        return size.get();
+    }
+
+    /**
+     * @return number of idle physical connections
+     */
+    public int getIdleCount() {
+        int idle = 0;
+        for (PoolEntry entry : entries) {
+            if (entry.isIdle()) ++idle;
+        }
+        return idle;
+    }
+
+    /**
+     * @return connection to close as soon as it is not needed
+     * @throws SQLTransientConnectionException when timed out waiting for connection
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) throw new SQLException("Pool is closed.");
+        try {
+            if (!permits.tryAcquire(connectionTimeoutNanos, NANOSECONDS)) {
+                throw new SQLTransientConnectionException(
+                    "Timed out waiting for connection, all " + maxSize + " are in use.");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for connection.", ex);
+        }
+        try {
+            return new PooledConnection(this, borrow());
+        } catch (SQLException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * There are as many permits as connections allowed, so having one guarantees there is either an idle
+     * connection or room for a new one. Other permit holders can win the race for it, but then there is
+     * another one left.
+     */
+    private PoolEntry borrow() throws SQLException {
+        PoolEntry last = lastUsed.get();
+        if (last != null && last.claim() && isValid(last)) {
+            return last;
+        }
+        while (true) {
+            for (PoolEntry entry : entries) {
+                if (entry.claim() && isValid(entry)) {
+                    return entry;
+                }
+            }
+            int current = size.get();
+            if (current < maxSize && size.compareAndSet(current, current + 1)) {
+                return create();
+            }
+            Thread.yield();
+        }
+    }
+
+    private boolean isValid(PoolEntry entry) {
+        if (System.nanoTime() - entry.lastUsedAt < validationIdleNanos) {
+            return true;
+        }
+        boolean valid;
+        try {
+            valid = entry.physical.isValid(validationTimeoutSeconds);
+        } catch (SQLException ex) {
+            valid = false;
+        }
+        if (!valid) remove(entry);
+        return valid;
+    }
+
+    private PoolEntry create() throws SQLException {
+        Connection physical = null;
+        try {
+            physical = physicalDataSource.getConnection();
+            physical.setAutoCommit(false);
+            PoolEntry entry = new PoolEntry(physical);
+            add(entry);
+            return entry;
+        } catch (SQLException | RuntimeException ex) {
+            size.decrementAndGet();
+            if (physical != null) closeQuietly(physical);
+            throw ex;
+        }
+    }
+
+    /**
+     * @param pending if transaction might not have been finished, connection is discarded if it cannot be rolled back
+     * @param autoCommit if auto-commit was left enabled (nothing to roll back then), it is disabled again
+     */
+    void giveBack(PoolEntry entry, boolean pending, boolean autoCommit) {
+        if (closed) {
+            discard(entry);
+            return;
+        }
+        if (autoCommit || pending) {
+            try {
+                if (autoCommit) {
+                    entry.physical.setAutoCommit(false);
+                } else {
+                    entry.physical.rollback();
+                }
+            } catch (SQLException ex) {
+                discard(entry);
+                return;
+            }
+        }
+        entry.release();
+        lastUsed.set(entry);
+        permits.release();
+    }
+
+    /**
+     * Removes connection which is in use, for good.
+     */
+    void discard(PoolEntry entry) {
+        remove(entry);
+        permits.release();
+    }
+
+    private void remove(PoolEntry entry) {
+        entry.remove();
+        synchronized (this) {
+            PoolEntry[] current = entries;
+            int index = Arrays.asList(current).indexOf(entry);
+            if (index < 0) return;
+            PoolEntry[] shrunk = new PoolEntry[current.length - 1];
+            System.arraycopy(current, 0, shrunk, 0, index);
+            System.arraycopy(current, index + 1, shrunk, index, shrunk.length - index);
+            entries = shrunk;
+        }
+        size.decrementAndGet();
+        closeQuietly(entry.physical);
+    }
+
+    private synchronized void add(PoolEntry entry) {
+        PoolEntry[] grown = Arrays.copyOf(entries, entries.length + 1);
+        grown[grown.length - 1] = entry;
+        entries = grown;
+    }
+
+    private static void closeQuietly(Connection physical) {
+        try {
+            physical.close();
+        } catch (SQLException ex) {
+            // it is gone anyway
+        }
+    }
+
+    /**
+     * Closes idle connections, the ones in use are closed when they come back.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (PoolEntry entry : entries) {
+            if (entry.claim()) remove(entry);
+        }
+    }
+
+    /**
+     * Pool has one set of credentials, the ones of physical data source.
+     */
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Connections share credentials of the physical data source.");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return physicalDataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        physicalDataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        physicalDataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return physicalDataSource.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return physicalDataSource.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return iface.isInstance(this) ? iface.cast(this) : physicalDataSource.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || physicalDataSource.isWrapperFor(iface);
+    }
+}
@@ -0,0 +1,45 @@
+package com.github.witoldsz.ultm.pool;
+
+import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Physical connection of {@link ConnectionPool}, claimed by compare-and-set so that borrowing takes no locks.
+ *
+ * @author witoldsz
+ */
+final class PoolEntry {
+
+    private static final int IDLE = 0;
+    private static final int IN_USE = 1;
+    private static final int REMOVED = -1;
+
+    final Connection physical;
+    private final AtomicInteger state = new AtomicInteger(IN_USE);
+    /**
+     * Written before the entry is released and read after it is claimed, so state guards it.
+     */
+    long lastUsedAt;
+
+    PoolEntry(Connection physical) {
+        this.physical = physical;
+        this.lastUsedAt = System.nanoTime();
+    }
+
+    boolean claim() {
+        return state.get() == IDLE && state.compareAndSet(IDLE, IN_USE);
+    }
+
+    void release() {
+        lastUsedAt = System.nanoTime();
+        state.set(IDLE);
+    }
+
+    void remove() {
+        state.set(REMOVED);
+    }
+
+    boolean isIdle() {
+        return state.get() == IDLE;
+    }
+}
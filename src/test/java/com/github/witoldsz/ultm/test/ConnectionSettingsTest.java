@@ -0,0 +1,137 @@
+package com.github.witoldsz.ultm.test;
+
+import com.github.witoldsz.ultm.ConnectionSettings;
+import com.github.witoldsz.ultm.TxManager;
+import com.github.witoldsz.ultm.TxOptions;
+import com.github.witoldsz.ultm.ULTM;
+import com.github.witoldsz.ultm.UnitOfWork;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.sql.DataSource;
+import static org.hamcrest.CoreMatchers.is;
+import org.junit.After;
+import static org.junit.Assert.assertThat;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author witoldsz
+ */
+public class ConnectionSettingsTest {
+
+    private final H2DemoDatabase h2DemoDatabase = new H2DemoDatabase();
+    private final List<String> calls = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean readOnly = new AtomicBoolean();
+    private Connection physical;
+    private DataSource pool;
+
+    @Before
+    public void setup() throws SQLException {
+        h2DemoDatabase.setup();
+        physical = h2DemoDatabase.getDataSource().getConnection();
+        physical.setAutoCommit(false);
+        pool = singleConnectionPool();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        physical.close();
+        h2DemoDatabase.tearDown();
+    }
+
+    @Test
+    public void should_apply_only_settings_which_changed() {
+        ConnectionSettings serializable = ConnectionSettings.create()
+            .withTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE)
+            .withHoldability(ResultSet.CLOSE_CURSORS_AT_COMMIT);
+        ULTM ultm = new ULTM(pool, serializable);
+        ultm.setAutoCommitCheck(false);
+        TxManager txManager = ultm.getTxManager();
+
+        txManager.tx(() -> ultm.getManagedDataSource().getConnection().close());
+        txManager.tx(() -> ultm.getManagedDataSource().getConnection().close());
+        assertThat(calls.toString(), is("[setTransactionIsolation, setHoldability]"));
+
+        calls.clear();
+        ULTM readCommittedUltm = new ULTM(pool, serializable.withTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED));
+        readCommittedUltm.setAutoCommitCheck(false);
+        readCommittedUltm.getTxManager().tx(() -> readCommittedUltm.getManagedDataSource().getConnection().close());
+        assertThat(calls.toString(), is("[setTransactionIsolation]"));
+    }
+
+    @Test
+    public void should_restore_isolation_changed_by_transaction_options() throws SQLException {
+        physical.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        ULTM ultm = new ULTM(pool);
+        TxOptions serializable = TxOptions.defaults().withIsolation(Connection.TRANSACTION_SERIALIZABLE);
+
+        ultm.getTxManager().tx(serializable, () -> {
+            try (Connection conn = ultm.getManagedDataSource().getConnection()) {
+                assertThat(conn.getTransactionIsolation(), is(Connection.TRANSACTION_SERIALIZABLE));
+            }
+        });
+        assertThat(physical.getTransactionIsolation(), is(Connection.TRANSACTION_READ_COMMITTED));
+
+        calls.clear();
+        ultm.getTxManager().tx(TxOptions.defaults().withIsolation(Connection.TRANSACTION_READ_COMMITTED), () -> {
+            ultm.getManagedDataSource().getConnection().close();
+        });
+        assertThat(calls.toString(), is("[getAutoCommit]"));
+    }
+
+    @Test
+    public void should_restore_read_only_flag_as_it_was() {
+        ULTM ultm = new ULTM(pool);
+        ultm.setAutoCommitCheck(false);
+        UnitOfWork unit = () -> ultm.getManagedDataSource().getConnection().close();
+
+        ultm.getTxManager().txReadOnly(unit);
+        assertThat(calls.toString(), is("[setReadOnly, setReadOnly]"));
+        assertThat(readOnly.get(), is(false));
+
+        calls.clear();
+        readOnly.set(true);
+        ultm.getTxManager().txReadOnly(unit);
+        assertThat(calls.toString(), is("[]"));
+        assertThat(readOnly.get(), is(true));
+    }
+
+    /**
+     * Hands out a new proxy of the same physical connection every time, like a real pool would.
+     */
+    private DataSource singleConnectionPool() {
+        Connection checkedOut = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                if (method.getName().equals("close")) return null;
+                if (method.getName().equals("unwrap")) return physical;
+                if (method.getName().startsWith("set") || method.getName().equals("getAutoCommit")) {
+                    calls.add(method.getName());
+                }
+                if (method.getName().equals("setReadOnly")) { // H2 ignores it
+                    readOnly.set((Boolean) args[0]);
+                    return null;
+                }
+                if (method.getName().equals("isReadOnly")) return readOnly.get();
+                try {
+                    return method.invoke(physical, args);
+                } catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+            });
+        return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {DataSource.class}, (proxy, method, args) -> {
+                if (method.getName().equals("getConnection")) {
+                    return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class},
+                        (p, m, a) -> m.invoke(checkedOut, a));
+                }
+                return method.invoke(h2DemoDatabase.getDataSource(), args);
+            });
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.witoldsz.ultm.test;
+
+import com.github.witoldsz.ultm.ReplicaSelector;
+import com.github.witoldsz.ultm.TxManager;
+import com.github.witoldsz.ultm.ULTM;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import static java.util.Arrays.asList;
+import javax.sql.DataSource;
+import static org.hamcrest.CoreMatchers.is;
+import org.junit.After;
+import static org.junit.Assert.assertThat;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author witoldsz
+ */
+public class ReadOnlyReplicaTest {
+
+    private final H2DemoDatabase h2DemoDatabase = new H2DemoDatabase();
+    private RecordingDataSource primary;
+    private RecordingDataSource replica1;
+    private RecordingDataSource replica2;
+    private TxManager txManager;
+    private DataSource managedDataSource;
+
+    @Before
+    public void setup() throws SQLException {
+        h2DemoDatabase.setup();
+        DataSource h2 = h2DemoDatabase.getDataSource();
+        primary = new RecordingDataSource(h2);
+        replica1 = new RecordingDataSource(h2);
+        replica2 = new RecordingDataSource(h2);
+        ULTM ultm = new ULTM(primary.getDataSource(), asList(replica1.getDataSource(), replica2.getDataSource()));
+        txManager = ultm.getTxManager();
+        managedDataSource = ultm.getManagedDataSource();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        h2DemoDatabase.tearDown();
+    }
+
+    @Test
+    public void should_route_read_only_transactions_to_replicas() {
+        txManager.tx(this::insertPerson);
+        assertThat(txManager.txReadOnlyResult(this::personsCount), is(1));
+        assertThat(txManager.txReadOnlyResult(this::personsCount), is(1));
+        txManager.txReadOnly(this::personsCount);
+
+        assertThat(primary.getAcquired().size(), is(1));
+        assertThat(replica1.getAcquired().size() + replica2.getAcquired().size(), is(3));
+        assertThat(Math.abs(replica1.getAcquired().size() - replica2.getAcquired().size()), is(1));
+    }
+
+    @Test
+    public void should_not_touch_replicas_when_read_only_transaction_is_noop() {
+        txManager.beginReadOnly();
+        txManager.commit();
+
+        assertThat(replica1.getAcquired().size() + replica2.getAcquired().size(), is(0));
+    }
+
+    @Test
+    public void least_in_flight_selector_should_prefer_idle_replica() {
+        ReplicaSelector selector = ReplicaSelector.leastInFlight();
+        int first = selector.acquire(2);
+        int second = selector.acquire(2);
+        assertThat(second, is(1 - first));
+
+        selector.release(first);
+        assertThat(selector.acquire(2), is(first));
+    }
+
+    private int insertPerson() throws SQLException {
+        try (Connection conn = managedDataSource.getConnection()) {
+            return conn.createStatement().executeUpdate("insert into PERSONS (ID, NAME) values (1, 'Mr Foo');");
+        }
+    }
+
+    private Integer personsCount() throws SQLException {
+        try (Connection conn = managedDataSource.getConnection()) {
+            try (ResultSet r = conn.createStatement().executeQuery("select count(*) from PERSONS;")) {
+                r.first();
+                return r.getInt(1);
+            }
+        }
+    }
+}
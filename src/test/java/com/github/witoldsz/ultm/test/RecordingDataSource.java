@@ -0,0 +1,73 @@
+package com.github.witoldsz.ultm.test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.sql.DataSource;
+import static java.util.Arrays.asList;
+
+/**
+ * Data source handing out connections of the one it wraps, recording every connection acquired
+ * and the names of chosen methods called on them.
+ *
+ * @author witoldsz
+ */
+public class RecordingDataSource {
+
+    private final List<String> recordedMethods;
+    private final List<Connection> acquired = new CopyOnWriteArrayList<>();
+    private final List<String> calls = new CopyOnWriteArrayList<>();
+    private final DataSource dataSource;
+
+    /**
+     * @param target data source to take connections from
+     * @param recordedMethods names of connection's methods to record, see {@link #getCalls()}
+     */
+    public RecordingDataSource(DataSource target, String... recordedMethods) {
+        this.recordedMethods = asList(recordedMethods);
+        this.dataSource = (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {DataSource.class}, (proxy, method, args) -> {
+                Object result = invoke(method, target, args);
+                if (!(result instanceof Connection)) return result;
+                acquired.add((Connection) result);
+                return recording((Connection) result);
+            });
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * @return connections of the wrapped data source, in order they were acquired
+     */
+    public List<Connection> getAcquired() {
+        return acquired;
+    }
+
+    /**
+     * @return names of recorded methods, in order they were called on any of the connections
+     */
+    public List<String> getCalls() {
+        return calls;
+    }
+
+    private Connection recording(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                if (recordedMethods.contains(method.getName())) calls.add(method.getName());
+                return invoke(method, connection, args);
+            });
+    }
+
+    private static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+}
@@ -1,20 +1,58 @@
 package com.github.witoldsz.ultm.test;
 
+import com.github.witoldsz.ultm.AsyncTxManager;
+import com.github.witoldsz.ultm.GroupCommitter;
+import com.github.witoldsz.ultm.HeldConnection;
+import com.github.witoldsz.ultm.Propagation;
+import com.github.witoldsz.ultm.RetryPolicy;
+import com.github.witoldsz.ultm.StatementLeak;
+import com.github.witoldsz.ultm.TxContextStorage;
+import com.github.witoldsz.ultm.TxHandoff;
 import com.github.witoldsz.ultm.TxManager;
+import com.github.witoldsz.ultm.TxOptions;
+import com.github.witoldsz.ultm.TxWatchdog;
 import com.github.witoldsz.ultm.ULTM;
+import com.github.witoldsz.ultm.UnitOfWork;
+import com.github.witoldsz.ultm.UnitOfWorkCall;
 import com.github.witoldsz.ultm.UnitOfWorkException;
+import com.github.witoldsz.ultm.UnmodifiedTxFinish;
+import com.github.witoldsz.ultm.metrics.HistogramTxMetrics;
+import com.github.witoldsz.ultm.pool.ConnectionPool;
+import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransactionRollbackException;
+import java.sql.Statement;
+import java.time.Duration;
 import java.util.ArrayList;
 import static java.util.Arrays.asList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import javax.sql.DataSource;
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.CoreMatchers.startsWith;
 import org.junit.After;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -27,13 +65,14 @@ import org.junit.Before;
 public class ULTMTest {
 
     private final H2DemoDatabase h2DemoDatabase = new H2DemoDatabase();
+    private ULTM ultm;
     private TxManager txManager;
     private DataSource managedDataSource;
 
     @Before
     public void setup() throws SQLException {
         h2DemoDatabase.setup();
-        ULTM ultm = new ULTM(h2DemoDatabase.getDataSource());
+        ultm = new ULTM(h2DemoDatabase.getDataSource());
         txManager = ultm.getTxManager();
         managedDataSource = ultm.getManagedDataSource();
     }
@@ -193,6 +232,969 @@ public class ULTMTest {
         assertThat(personCount, equalTo(asList(0)));
     }
 
+    @Test
+    public void should_rollback_instead_of_commit_when_nothing_was_modified() {
+        ultm.setUnmodifiedTxFinish(UnmodifiedTxFinish.ROLLBACK);
+        ultm.setModifyingSqlClassifier(sql -> false); // lying on purpose, to see the rollback
+
+        txManager.tx(() -> {
+            try (Connection conn = managedDataSource.getConnection()) {
+                conn.createStatement().execute("insert into PERSONS (ID, NAME) values (1, 'Mr Foo');");
+            }
+        });
+        assertThat(txManager.txResult(this::personsCount), is(0));
+
+        txManager.tx(this::insertPerson);
+        assertThat(txManager.txResult(this::personsCount), is(1));
+    }
+
+    @Test
+    public void should_consider_queries_modifying_unless_classifier_says_otherwise() {
+        RecordingDataSource recording = new RecordingDataSource(h2DemoDatabase.getDataSource(), "commit", "rollback");
+        ULTM finishTrackingUltm = new ULTM(recording.getDataSource());
+        finishTrackingUltm.setUnmodifiedTxFinish(UnmodifiedTxFinish.ROLLBACK);
+        UnitOfWork query = () -> {
+            try (Connection conn = finishTrackingUltm.getManagedDataSource().getConnection();
+                PreparedStatement stmt = conn.prepareStatement("select count(*) from PERSONS")) {
+                stmt.executeQuery().close();
+            }
+        };
+
+        finishTrackingUltm.getTxManager().tx(query);
+        finishTrackingUltm.setModifyingSqlClassifier(sql -> !sql.startsWith("select"));
+        finishTrackingUltm.getTxManager().tx(query);
+
+        assertThat(recording.getCalls(), is(asList("commit", "rollback")));
+    }
+
+    @Test
+    public void should_reuse_closed_prepared_statements_within_transaction() throws SQLException {
+        ultm.setStatementCacheSize(10);
+        String sql = "insert into PERSONS (ID, NAME) values (?, 'Mr Foo');";
+
+        txManager.begin();
+        Connection conn = managedDataSource.getConnection();
+        PreparedStatement first = conn.prepareStatement(sql);
+        first.setInt(1, 1);
+        first.executeUpdate();
+        first.close();
+        assertThat(first.isClosed(), is(true));
+
+        PreparedStatement second = conn.prepareStatement(sql);
+        assertThat(second, sameInstance(first));
+        assertThat(second.isClosed(), is(false));
+        second.setInt(1, 2);
+        second.executeUpdate();
+        second.close();
+        txManager.commit();
+
+        txManager.begin();
+        PreparedStatement third = managedDataSource.getConnection().prepareStatement(sql);
+        assertThat(third, not(sameInstance(first)));
+        third.close();
+        txManager.commit();
+
+        assertThat(txManager.txResult(this::personsCount), is(2));
+    }
+
+    @Test
+    public void should_batch_repeated_updates() throws SQLException {
+        ultm.setStatementCacheSize(10);
+        ultm.setMaxBatchSize(3);
+
+        txManager.begin();
+        for (int i = 0; i < 5; ++i) {
+            try (Connection conn = managedDataSource.getConnection();
+                 PreparedStatement s = conn.prepareStatement("insert into PERSONS (ID, NAME) values (?, 'Mr Foo');")) {
+                s.setInt(1, i);
+                assertThat(s.executeUpdate(), is(Statement.SUCCESS_NO_INFO));
+            }
+        }
+        assertThat(personsCount(), is(5));
+        for (int i = 5; i < 7; ++i) {
+            try (Connection conn = managedDataSource.getConnection();
+                 PreparedStatement s = conn.prepareStatement("insert into PERSONS (ID, NAME) values (?, 'Mr Foo');")) {
+                s.setInt(1, i);
+                s.executeUpdate();
+            }
+        }
+        txManager.commit();
+
+        assertThat(txManager.txResult(this::personsCount), is(7));
+    }
+
+    @Test
+    public void should_run_transactions_asynchronously() throws Exception {
+        try (AsyncTxManager asyncTxManager = ultm.createAsyncTxManager(2, 10)) {
+            assertThat(asyncTxManager.txAsync(this::insertPerson).get(), is(1));
+
+            CompletableFuture<Integer> failed = asyncTxManager.txAsync(() -> {
+                insertPerson();
+                throw new Exception("Something bad happened");
+            });
+            try {
+                failed.get();
+                fail("This test should not get here.");
+            } catch (ExecutionException ex) {
+                assertThat(ex.getCause().getMessage(), is("Something bad happened"));
+            }
+
+            assertThat(asyncTxManager.txAsync(this::personsCount).get(), is(1));
+        }
+    }
+
+    @Test
+    public void should_reject_asynchronous_transactions_when_queue_is_full() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try (AsyncTxManager asyncTxManager = ultm.createAsyncTxManager(1, 1)) {
+            CompletableFuture<Boolean> busy = asyncTxManager.txAsync(() -> release.await(5, SECONDS));
+            CompletableFuture<Integer> queued = asyncTxManager.txAsync(this::personsCount);
+            CompletableFuture<Integer> rejected = asyncTxManager.txAsync(this::personsCount);
+            try {
+                rejected.get();
+                fail("This test should not get here.");
+            } catch (ExecutionException ex) {
+                assertThat(ex.getCause().getClass(), equalTo(RejectedExecutionException.class));
+            }
+            release.countDown();
+            assertThat(busy.get(), is(true));
+            assertThat(queued.get(), is(0));
+        }
+    }
+
+    @Test
+    public void should_propagate_transaction_to_other_threads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            txManager.begin();
+            insertPerson();
+            assertThat(executor.submit(txManager.propagate(this::personsCount)).get(), is(1));
+            try {
+                executor.submit(txManager.propagate(() -> txManager.commit())).get();
+                fail("This test should not get here.");
+            } catch (ExecutionException ex) {
+                assertThat(ex.getCause().getMessage(), is("Transaction belongs to other thread."));
+            }
+            txManager.rollback();
+
+            assertThat(txManager.txResult(this::personsCount), is(0));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void should_not_run_before_commit_callbacks_of_other_thread() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AtomicInteger callbacks = new AtomicInteger();
+        try {
+            txManager.begin();
+            txManager.onBeforeCommit(callbacks::incrementAndGet);
+            try {
+                executor.submit(txManager.propagate(() -> txManager.commit())).get();
+                fail("This test should not get here.");
+            } catch (ExecutionException ex) {
+                assertThat(ex.getCause().getMessage(), is("Transaction belongs to other thread."));
+            }
+            assertThat(callbacks.get(), is(0));
+            txManager.commit();
+            assertThat(callbacks.get(), is(1));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void should_work_with_per_transaction_contexts() {
+        ultm.setTxContextStorage(TxContextStorage.PER_TRANSACTION);
+
+        should_rollback_tx_within_UnitOfWork();
+        txManager.tx(this::insertPerson);
+        assertThat(txManager.txResult(this::personsCount), is(1));
+        should_allow_noop();
+    }
+
+    @Test
+    public void should_record_metrics() {
+        HistogramTxMetrics metrics = new HistogramTxMetrics();
+        ultm.setTxMetrics(metrics);
+
+        txManager.tx(this::insertPerson);
+        txManager.tx(() -> {/* noop */});
+        try {
+            txManager.tx(() -> {
+                insertPerson();
+                throw new RuntimeException("Something happened!");
+            });
+        } catch (RuntimeException e) {
+            // ignore
+        }
+
+        assertThat(metrics.getInFlight(), is(0L));
+        assertThat(metrics.getFinished(), is(3L));
+        assertThat(metrics.getFinishedWithoutConnection(), is(1L));
+        assertThat(metrics.getConnectionAcquisition().getCount(), is(2L));
+        assertThat(metrics.getUnitExecution().getCount(), is(3L));
+        assertThat(metrics.getCommit().getCount(), is(1L));
+        assertThat(metrics.getRollback().getCount(), is(1L));
+    }
+
+    @Test
+    public void should_retry_serialization_failures() {
+        List<Integer> failedAttempts = new ArrayList<>();
+        RetryPolicy policy = RetryPolicy.maxAttempts(3)
+            .withBackoff(Duration.ofMillis(1), Duration.ofMillis(2))
+            .withRetryListener((attempt, ex) -> failedAttempts.add(attempt));
+        AtomicInteger attempts = new AtomicInteger();
+
+        int result = txManager.txWithRetryResult(policy, () -> {
+            insertPerson();
+            if (attempts.incrementAndGet() < 3) {
+                throw new SQLTransactionRollbackException("could not serialize access", "40001");
+            }
+            return personsCount();
+        });
+
+        assertThat(result, is(1));
+        assertThat(failedAttempts, equalTo(asList(1, 2)));
+        assertThat(txManager.txResult(this::personsCount), is(1));
+    }
+
+    @Test
+    public void should_not_retry_other_failures_nor_more_than_allowed() {
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            txManager.txWithRetry(RetryPolicy.maxAttempts(5), () -> {
+                attempts.incrementAndGet();
+                throw new SQLException("syntax error", "42000");
+            });
+            fail("This test should not get here.");
+        } catch (UnitOfWorkException ex) {
+            assertThat(attempts.get(), is(1));
+        }
+
+        attempts.set(0);
+        try {
+            txManager.txWithRetry(RetryPolicy.maxAttempts(2).withBackoff(Duration.ZERO, Duration.ZERO), () -> {
+                attempts.incrementAndGet();
+                throw new UnitOfWorkException(new SQLException("deadlock detected", "40P01"));
+            });
+            fail("This test should not get here.");
+        } catch (UnitOfWorkException ex) {
+            assertThat(attempts.get(), is(2));
+        }
+    }
+
+    @Test
+    public void should_rollback_nested_unit_of_work_to_savepoint() {
+        txManager.tx(() -> {
+            insertPerson();
+            try {
+                txManager.tx(Propagation.NESTED, () -> {
+                    insertPerson();
+                    throw new IllegalArgumentException("inner failure");
+                });
+                fail("This test should not get here.");
+            } catch (IllegalArgumentException ex) {
+                assertThat(personsCount(), is(1));
+            }
+            txManager.tx(Propagation.NESTED, this::insertPerson);
+        });
+        assertThat(txManager.txResult(this::personsCount), is(2));
+    }
+
+    @Test
+    public void should_commit_independently_when_new_transaction_is_required() throws SQLException {
+        txManager.begin();
+        insertPerson();
+        txManager.tx(Propagation.REQUIRES_NEW, this::insertPerson);
+        txManager.rollback();
+
+        assertThat(txManager.txResult(this::personsCount), is(1));
+    }
+
+    @Test
+    public void should_rollback_whole_transaction_when_joined_unit_of_work_fails() {
+        try {
+            txManager.tx(() -> {
+                insertPerson();
+                try {
+                    txManager.tx(Propagation.REQUIRED, () -> {
+                        throw new SQLException("inner failure");
+                    });
+                } catch (UnitOfWorkException ex) {
+                    // swallowed, but it's too late
+                }
+            });
+            fail("This test should not get here.");
+        } catch (IllegalStateException ex) {
+            assertThat(ex.getMessage(), is("Transaction was marked rollback-only, so it has been rolled back."));
+        }
+        assertThat(txManager.txResult(this::personsCount), is(0));
+    }
+
+    @Test
+    public void should_hand_out_driver_statements_unless_they_need_wrapping() {
+        txManager.tx(Duration.ofSeconds(30), () -> {
+            try (Connection conn = managedDataSource.getConnection();
+                PreparedStatement stmt = conn.prepareStatement("select count(*) from PERSONS")) {
+                assertThat(stmt.getClass().getName(), startsWith("org.h2."));
+                assertThat(stmt.getQueryTimeout(), is(30));
+            }
+        });
+        ultm.setStatementCacheSize(10);
+        txManager.tx(() -> {
+            try (Connection conn = managedDataSource.getConnection();
+                PreparedStatement stmt = conn.prepareStatement("select count(*) from PERSONS")) {
+                assertThat(stmt.getClass().getName(), startsWith("com.github.witoldsz.ultm."));
+            }
+        });
+    }
+
+    @Test
+    public void should_set_time_left_as_query_timeout() {
+        txManager.tx(Duration.ofSeconds(30), () -> {
+            try (Connection conn = managedDataSource.getConnection();
+                PreparedStatement stmt = conn.prepareStatement("select count(*) from PERSONS")) {
+                assertThat(stmt.getQueryTimeout(), is(30));
+            }
+        });
+        txManager.tx(() -> {
+            try (Connection conn = managedDataSource.getConnection();
+                PreparedStatement stmt = conn.prepareStatement("select count(*) from PERSONS")) {
+                assertThat(stmt.getQueryTimeout(), is(0));
+            }
+        });
+    }
+
+    @Test
+    public void should_rollback_when_transaction_times_out() {
+        try {
+            txManager.tx(Duration.ofMillis(50), () -> {
+                insertPerson();
+                Thread.sleep(100);
+            });
+            fail("This test should not get here.");
+        } catch (UnitOfWorkException ex) {
+            assertThat(ex.getCause(), instanceOf(SQLTimeoutException.class));
+        }
+        try {
+            txManager.tx(Duration.ofMillis(50), () -> {
+                Thread.sleep(100);
+                insertPerson();
+            });
+            fail("This test should not get here.");
+        } catch (UnitOfWorkException ex) {
+            assertThat(ex.getCause(), instanceOf(SQLTimeoutException.class));
+        }
+        assertThat(txManager.txResult(this::personsCount), is(0));
+    }
+
+    @Test
+    public void should_report_connections_held_for_too_long() throws Exception {
+        List<HeldConnection> reported = new CopyOnWriteArrayList<>();
+        try (TxWatchdog watchdog = ultm.startWatchdog(Duration.ofMillis(50), Duration.ofMillis(10), 1, reported::add)) {
+            txManager.tx(this::insertPerson);
+            txManager.tx(() -> {
+                insertPerson();
+                Thread.sleep(200);
+            });
+        }
+        assertThat(reported.size(), is(1));
+        assertThat(reported.get(0).getThread(), sameInstance(Thread.currentThread()));
+        assertTrue(reported.get(0).getHeldFor().toMillis() >= 50);
+        assertThat(reported.get(0).getBeginTrace().getStackTrace()[0].getClassName(), is(ULTMTest.class.getName()));
+    }
+
+    @Test
+    public void should_capture_begin_trace_of_every_nth_transaction() throws Exception {
+        List<HeldConnection> reported = new CopyOnWriteArrayList<>();
+        try (TxWatchdog watchdog = ultm.startWatchdog(Duration.ofMillis(50), Duration.ofMillis(10), 2, reported::add)) {
+            for (int i = 0; i < 4; ++i) {
+                txManager.tx(() -> {
+                    insertPerson();
+                    Thread.sleep(100);
+                });
+            }
+        }
+        assertThat(reported.size(), is(4));
+        assertNotNull(reported.get(0).getBeginTrace());
+        assertNull(reported.get(1).getBeginTrace());
+        assertNotNull(reported.get(2).getBeginTrace());
+        assertNull(reported.get(3).getBeginTrace());
+    }
+
+    @Test
+    public void should_apply_transaction_options() {
+        TxOptions options = TxOptions.defaults()
+            .withIsolation(Connection.TRANSACTION_SERIALIZABLE)
+            .withTimeout(Duration.ofSeconds(30));
+        txManager.tx(options, () -> {
+            try (Connection conn = managedDataSource.getConnection();
+                PreparedStatement stmt = conn.prepareStatement("select count(*) from PERSONS")) {
+                assertThat(conn.getTransactionIsolation(), is(Connection.TRANSACTION_SERIALIZABLE));
+                assertThat(stmt.getQueryTimeout(), is(30));
+            }
+        });
+    }
+
+    @Test
+    public void should_keep_connection_with_thread_for_next_transaction() throws Exception {
+        ultm.setConnectionPinning(Duration.ofMillis(500), 1);
+        Connection first = txManager.txResult(() -> managedDataSource.getConnection().unwrap(Connection.class));
+        Connection second = txManager.txResult(() -> managedDataSource.getConnection().unwrap(Connection.class));
+        assertThat(second, sameInstance(first));
+        assertFalse(first.isClosed());
+
+        long giveUpAt = System.currentTimeMillis() + 5000;
+        while (!first.isClosed() && System.currentTimeMillis() < giveUpAt) {
+            Thread.sleep(10);
+        }
+        assertTrue("idle connection should have been closed", first.isClosed());
+    }
+
+    @Test
+    public void should_prefetch_connection_and_release_it_when_unused() throws Exception {
+        RecordingDataSource recording = new RecordingDataSource(h2DemoDatabase.getDataSource());
+        List<Connection> acquired = recording.getAcquired();
+        ULTM prefetchingUltm = new ULTM(recording.getDataSource());
+        TxManager prefetchingTxManager = prefetchingUltm.getTxManager();
+        TxOptions prefetch = TxOptions.defaults().withPrefetch(true);
+
+        prefetchingTxManager.tx(prefetch, () -> {
+            try (Connection conn = prefetchingUltm.getManagedDataSource().getConnection()) {
+                conn.createStatement().executeUpdate("insert into PERSONS (ID, NAME) values (1, 'Mr Foo');");
+            }
+        });
+        assertThat(acquired.size(), is(1));
+        assertThat(txManager.txResult(this::personsCount), is(1));
+
+        prefetchingTxManager.tx(prefetch, () -> {/* noop */});
+        long giveUpAt = System.currentTimeMillis() + 5000;
+        while ((acquired.size() < 2 || !acquired.get(1).isClosed()) && System.currentTimeMillis() < giveUpAt) {
+            Thread.sleep(10);
+        }
+        assertThat(acquired.size(), is(2));
+        assertTrue("unused connection should have been closed", acquired.get(1).isClosed());
+    }
+
+    @Test
+    public void should_prefetch_pinned_connection_for_read_only_transaction_without_replicas() {
+        RecordingDataSource recording = new RecordingDataSource(h2DemoDatabase.getDataSource());
+        ULTM pinningUltm = new ULTM(recording.getDataSource());
+        pinningUltm.setConnectionPinning(Duration.ofSeconds(10), 1);
+        DataSource pinningDataSource = pinningUltm.getManagedDataSource();
+        UnitOfWorkCall<Connection> physical = () -> pinningDataSource.getConnection().unwrap(Connection.class);
+
+        Connection first = pinningUltm.getTxManager().txResult(physical);
+        Connection second = pinningUltm.getTxManager().txResult(
+            TxOptions.defaults().withReadOnly(true).withPrefetch(true), physical);
+
+        assertThat(second, sameInstance(first));
+        assertThat(recording.getAcquired().size(), is(1));
+    }
+
+    @Test
+    public void should_not_wait_for_prefetched_connection_longer_than_transaction_can_take() throws Exception {
+        try (ConnectionPool pool = new ConnectionPool(h2DemoDatabase.getDataSource(), 1)) {
+            ULTM poolUltm = new ULTM(pool);
+            Connection held = pool.getConnection();
+            TxOptions options = TxOptions.defaults().withPrefetch(true).withTimeout(Duration.ofMillis(100));
+            long startedAt = System.nanoTime();
+            try {
+                poolUltm.getTxManager().tx(options, () -> poolUltm.getManagedDataSource().getConnection());
+                fail("This test should not get here.");
+            } catch (UnitOfWorkException ex) {
+                assertThat(ex.getCause(), instanceOf(SQLTimeoutException.class));
+            }
+            assertTrue("should give up at deadline", System.nanoTime() - startedAt < SECONDS.toNanos(5));
+            held.close();
+
+            long giveUpAt = System.currentTimeMillis() + 5000;
+            while (pool.getIdleCount() < 1 && System.currentTimeMillis() < giveUpAt) {
+                Thread.sleep(10);
+            }
+            assertThat("connection arriving late should be given back", pool.getIdleCount(), is(1));
+        }
+    }
+
+    @Test
+    public void should_abort_transaction_which_overruns_its_deadline() throws Exception {
+        try (ConnectionPool pool = new ConnectionPool(h2DemoDatabase.getDataSource(), 1)) {
+            pool.setConnectionTimeout(Duration.ofSeconds(5));
+            ULTM poolUltm = new ULTM(pool);
+            AtomicBoolean freedBeforeUnitEnded = new AtomicBoolean();
+            try {
+                poolUltm.getTxManager().tx(Duration.ofMillis(100), () -> {
+                    try (Connection conn = poolUltm.getManagedDataSource().getConnection()) {
+                        conn.createStatement().executeUpdate("insert into PERSONS (ID, NAME) values (1, 'Mr Foo');");
+                    }
+                    pool.getConnection().close();
+                    freedBeforeUnitEnded.set(true);
+                });
+                fail("This test should not get here.");
+            } catch (UnitOfWorkException ex) {
+                assertThat(ex.getCause(), instanceOf(SQLTimeoutException.class));
+            }
+            assertTrue("connection should be let go at the deadline", freedBeforeUnitEnded.get());
+            assertThat(txManager.txResult(this::personsCount), is(0));
+        }
+    }
+
+    @Test
+    public void should_run_transaction_callbacks() {
+        List<String> events = new CopyOnWriteArrayList<>();
+        txManager.tx(() -> {
+            txManager.onBeforeCommit(this::insertPerson);
+            txManager.onAfterCommit(() -> events.add("committed"));
+            txManager.onAfterRollback(() -> events.add("rolled back"));
+            insertPerson();
+        });
+        assertThat(events, equalTo(asList("committed")));
+        assertThat(txManager.txResult(this::personsCount), is(2));
+
+        events.clear();
+        try {
+            txManager.tx(() -> {
+                txManager.onBeforeCommit(() -> {
+                    throw new SQLException("before commit failure");
+                });
+                txManager.onAfterCommit(() -> events.add("committed"));
+                txManager.onAfterRollback(() -> events.add("rolled back"));
+                insertPerson();
+            });
+            fail("This test should not get here.");
+        } catch (UnitOfWorkException ex) {
+            assertThat(ex.getCause().getMessage(), is("before commit failure"));
+        }
+        assertThat(events, equalTo(asList("rolled back")));
+        assertThat(txManager.txResult(this::personsCount), is(2));
+    }
+
+    @Test
+    public void should_run_after_commit_callbacks_on_executor() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ultm.setAfterCommitExecutor(executor);
+        CompletableFuture<Integer> countAfterCommit = new CompletableFuture<>();
+        CompletableFuture<Thread> callbackThread = new CompletableFuture<>();
+        txManager.tx(() -> {
+            insertPerson();
+            txManager.onAfterCommit(() -> callbackThread.complete(Thread.currentThread()));
+            txManager.onAfterCommit(() -> countAfterCommit.complete(txManager.txResult(this::personsCount)));
+        });
+        assertThat(countAfterCommit.get(5, SECONDS), is(1));
+        assertThat(callbackThread.get(), not(sameInstance(Thread.currentThread())));
+        executor.shutdown();
+    }
+
+    @Test
+    public void should_keep_failure_of_unit_when_after_rollback_callback_fails() {
+        try {
+            txManager.txUnwrapped(() -> {
+                txManager.onAfterRollback(() -> {
+                    throw new IllegalStateException("callback");
+                });
+                throw new IOException("the real failure");
+            });
+            fail("This test should not get here.");
+        } catch (Exception ex) {
+            assertThat(ex.getMessage(), is("the real failure"));
+            assertThat(ex.getSuppressed().length, is(1));
+            assertThat(ex.getSuppressed()[0].getMessage(), is("callback"));
+        }
+    }
+
+    @Test
+    public void should_roll_back_callbacks_of_nested_unit_with_it() {
+        List<String> events = new CopyOnWriteArrayList<>();
+        txManager.tx(() -> {
+            insertPerson();
+            try {
+                txManager.tx(Propagation.NESTED, () -> {
+                    txManager.onBeforeCommit(this::insertPerson);
+                    txManager.onAfterCommit(() -> events.add("nested committed"));
+                    txManager.onAfterRollback(() -> events.add("nested rolled back"));
+                    throw new SQLException("nested failure");
+                });
+                fail("This test should not get here.");
+            } catch (UnitOfWorkException ex) {
+                assertThat(ex.getCause().getMessage(), is("nested failure"));
+            }
+            txManager.onAfterCommit(() -> events.add("committed"));
+        });
+        assertThat(events, equalTo(asList("nested rolled back", "committed")));
+        assertThat(txManager.txResult(this::personsCount), is(1));
+    }
+
+    @Test
+    public void should_run_after_commit_callbacks_on_committing_thread_when_executor_rejects_them() {
+        ultm.setAfterCommitExecutor(task -> {
+            throw new RejectedExecutionException("busy");
+        });
+        List<Thread> callbackThreads = new CopyOnWriteArrayList<>();
+        txManager.tx(() -> {
+            insertPerson();
+            txManager.onAfterCommit(() -> callbackThreads.add(Thread.currentThread()));
+        });
+        assertThat(callbackThreads, equalTo(asList(Thread.currentThread())));
+        assertThat(txManager.txResult(this::personsCount), is(1));
+    }
+
+    @Test
+    public void should_commit_units_in_groups() throws Exception {
+        HistogramTxMetrics metrics = new HistogramTxMetrics();
+        ultm.setTxMetrics(metrics);
+        CountDownLatch allSubmitted = new CountDownLatch(1);
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        try (GroupCommitter committer = ultm.createGroupCommitter(100, 100)) {
+            results.add(committer.submit(() -> {
+                allSubmitted.await();
+                insertPerson();
+            }));
+            for (int i = 0; i < 20; ++i) {
+                results.add(committer.submit(this::insertPerson));
+            }
+            CompletableFuture<Void> failing = committer.submit(() -> {
+                insertPerson();
+                throw new SQLException("unit failure");
+            });
+            allSubmitted.countDown();
+            CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).get(5, SECONDS);
+            try {
+                failing.get(5, SECONDS);
+                fail("This test should not get here.");
+            } catch (ExecutionException ex) {
+                assertThat(ex.getCause().getCause().getMessage(), is("unit failure"));
+            }
+        }
+        assertTrue("units submitted while first group runs should go together", metrics.getCommit().getCount() <= 2);
+        assertThat(txManager.txResult(this::personsCount), is(21));
+    }
+
+    @Test
+    public void should_close_and_report_statements_left_open_by_transaction() throws SQLException {
+        List<StatementLeak> leaks = new CopyOnWriteArrayList<>();
+        ultm.setStatementLeakListener(leaks::add, true);
+        PreparedStatement leaked = txManager.txResult(() -> {
+            Connection conn = managedDataSource.getConnection();
+            try (Statement closed = conn.createStatement()) {
+                closed.executeUpdate("insert into PERSONS (ID, NAME) values (1, 'Mr Foo');");
+            }
+            PreparedStatement ps = conn.prepareStatement("select * from PERSONS");
+            ps.executeQuery();
+            return ps;
+        });
+
+        assertThat(leaked.isClosed(), is(true));
+        assertThat(leaks.size(), is(1));
+        assertThat(leaks.get(0).getSql(), is("select * from PERSONS"));
+        assertNotNull(leaks.get(0).getOpenedAt());
+
+        ultm.setStatementLeakListener(null, false);
+        txManager.tx(this::insertPerson);
+        assertThat(leaks.size(), is(1));
+    }
+
+    @Test
+    public void should_stream_rows_within_transaction_of_its_own() throws SQLException {
+        txManager.tx(() -> {
+            try (Connection conn = managedDataSource.getConnection()) {
+                conn.createStatement().executeUpdate("insert into PERSONS (ID, NAME) values (1, 'Mr Foo'), (2, 'Mr Bar');");
+            }
+        });
+        List<String> names = new ArrayList<>();
+        txManager.begin();
+        try (Stream<String> persons = txManager.txStream(
+                "select NAME from PERSONS where ID > ? order by ID", r -> r.getString(1), 0)) {
+            assertThat(personsCount(), is(2));
+            txManager.commit();
+            assertThat(txManager.txResult(this::personsCount), is(2));
+            persons.forEach(names::add);
+        }
+        assertThat(names, is(asList("Mr Foo", "Mr Bar")));
+
+        AtomicInteger rollbacks = new AtomicInteger();
+        txManager.setAfterRollbackListener(rollbacks::incrementAndGet);
+        try (Stream<String> persons = txManager.txStream("select NAME from PERSONS", r -> r.getString(2))) {
+            persons.count();
+            fail("Should throw.");
+        } catch (UnitOfWorkException ex) {
+            assertThat(ex.getCause(), instanceOf(SQLException.class));
+        }
+        assertThat(rollbacks.get(), is(1));
+    }
+
+    @Test
+    public void should_run_read_only_units_in_parallel() throws SQLException {
+        txManager.tx(this::insertPerson);
+        List<UnitOfWorkCall<String>> units = new ArrayList<>();
+        for (int i = 0; i < 6; ++i) {
+            int unit = i;
+            units.add(() -> {
+                Thread.sleep(200);
+                return unit + ":" + personsCount();
+            });
+        }
+        ultm.setMaxParallelism(3);
+        txManager.begin();
+        long startedAt = System.nanoTime();
+        List<String> results = txManager.txParallel(units);
+        long tookMillis = (System.nanoTime() - startedAt) / 1_000_000;
+        assertThat(personsCount(), is(1));
+        txManager.commit();
+
+        assertThat(results, is(asList("0:1", "1:1", "2:1", "3:1", "4:1", "5:1")));
+        assertTrue("took " + tookMillis + "ms", tookMillis < 1000);
+    }
+
+    @Test
+    public void should_roll_back_parallel_units_when_one_of_them_fails() {
+        AtomicInteger rollbacks = new AtomicInteger();
+        AtomicInteger started = new AtomicInteger();
+        txManager.setAfterRollbackListener(rollbacks::incrementAndGet);
+        List<UnitOfWorkCall<Integer>> units = asList(
+            () -> {
+                started.incrementAndGet();
+                Thread.sleep(300);
+                return personsCount();
+            },
+            () -> {
+                started.incrementAndGet();
+                throw new SQLException("Failing unit");
+            },
+            () -> {
+                started.incrementAndGet();
+                return personsCount();
+            });
+        ultm.setMaxParallelism(2);
+        try {
+            txManager.txParallel(units);
+            fail("Should throw.");
+        } catch (UnitOfWorkException ex) {
+            assertThat(ex.getCause().getMessage(), is("Failing unit"));
+        }
+        assertThat(started.get(), is(2));
+        assertThat(rollbacks.get(), is(2));
+    }
+
+    @Test
+    public void should_hand_transaction_off_to_other_thread() throws Exception {
+        txManager.begin();
+        insertPerson();
+        TxHandoff handoff = txManager.handOff();
+        assertThat(txManager.txResult(this::personsCount), is(0));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> {
+                txManager.takeOver(handoff);
+                insertPerson();
+                txManager.commit();
+                return null;
+            }).get();
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(txManager.txResult(this::personsCount), is(2));
+        try {
+            txManager.takeOver(handoff);
+            fail("Should throw.");
+        } catch (IllegalStateException ex) {
+            assertThat(ex.getMessage(), is("Transaction has been taken over already."));
+        }
+    }
+
+    @Test
+    public void should_let_watchdog_abort_transaction() throws Exception {
+        List<HeldConnection> reported = new CopyOnWriteArrayList<>();
+        CountDownLatch aborted = new CountDownLatch(1);
+        try (TxWatchdog watchdog = ultm.startWatchdog(Duration.ofMillis(50), Duration.ofMillis(10), 0, held -> {
+            reported.add(held);
+            if (held.abort()) aborted.countDown();
+        })) {
+            txManager.begin();
+            insertPerson();
+            assertTrue(aborted.await(5, SECONDS));
+            try {
+                insertPerson();
+                fail("Should throw.");
+            } catch (SQLException ex) {
+                // connection is gone
+            }
+            try {
+                txManager.commit();
+                fail("Should throw.");
+            } catch (UnitOfWorkException ex) {
+                assertThat(ex.getCause().getMessage(), is("Transaction was aborted."));
+            }
+        }
+        assertThat(reported.get(0).abort(), is(false));
+        assertThat(txManager.txResult(this::personsCount), is(0));
+    }
+
+    @Test
+    public void should_not_let_connection_kept_after_transaction_reach_the_next_one() throws SQLException {
+        Connection kept = txManager.txResult(() -> {
+            Connection conn = managedDataSource.getConnection();
+            conn.createStatement().executeUpdate("insert into PERSONS (ID, NAME) values (1, 'Mr Foo');");
+            return conn;
+        });
+        assertTrue(kept.isClosed());
+        try {
+            kept.createStatement();
+            fail("Should throw.");
+        } catch (SQLException ex) {
+            assertThat(ex.getMessage(), is("Connection is closed."));
+        }
+        txManager.tx(() -> {
+            personsCount();
+            CompletableFuture<Void> elsewhere = CompletableFuture.runAsync(() -> {
+                try {
+                    assertTrue(kept.isClosed());
+                    kept.createStatement().executeUpdate("insert into PERSONS (ID, NAME) values (2, 'Mr Bar');");
+                    fail("Should throw.");
+                } catch (SQLException ex) {
+                    assertThat(ex.getMessage(), is("Connection is closed."));
+                }
+            });
+            elsewhere.get();
+            Callable<Boolean> joined = txManager.propagate(() -> kept.isClosed());
+            assertThat(ForkJoinPool.commonPool().submit(joined).get(), is(false));
+        });
+        assertThat(txManager.txResult(this::personsCount), is(1));
+    }
+
+    @Test
+    public void should_let_other_thread_close_the_stream() throws Exception {
+        txManager.tx(this::insertPerson);
+        List<StatementLeak> leaks = new CopyOnWriteArrayList<>();
+        ultm.setStatementLeakListener(leaks::add, false);
+        AtomicInteger rollbacks = new AtomicInteger();
+        txManager.setAfterRollbackListener(rollbacks::incrementAndGet);
+        Stream<String> persons = txManager.txStream("select NAME from PERSONS", r -> r.getString(1));
+        assertThat(persons.findFirst().get(), is("Mr Foo"));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(persons::close).get();
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(leaks.size(), is(0));
+        assertThat(rollbacks.get(), is(0));
+        txManager.tx(() -> assertThat(personsCount(), is(1)));
+    }
+
+    @Test
+    public void should_not_pin_connection_of_separated_transaction() throws Exception {
+        ultm.setConnectionPinning(Duration.ofSeconds(10), 1);
+        txManager.begin();
+        Connection outer = managedDataSource.getConnection().unwrap(Connection.class);
+        Connection separated = txManager.txResult(Propagation.REQUIRES_NEW,
+            () -> managedDataSource.getConnection().unwrap(Connection.class));
+        txManager.commit();
+
+        assertTrue(separated.isClosed());
+        Connection next = txManager.txResult(() -> managedDataSource.getConnection().unwrap(Connection.class));
+        assertThat(next, sameInstance(outer));
+    }
+
+    @Test
+    public void should_rethrow_error_of_parallel_unit() {
+        List<UnitOfWorkCall<Integer>> units = asList(
+            () -> {
+                throw new AssertionError("Failing unit");
+            },
+            this::personsCount,
+            this::personsCount);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ultm.setMaxParallelism(2);
+        ultm.setParallelExecutor(executor);
+        try {
+            txManager.txParallel(units);
+            fail("Should throw.");
+        } catch (AssertionError ex) {
+            assertThat(ex.getMessage(), is("Failing unit"));
+        } finally {
+            executor.shutdown();
+        }
+        txManager.begin();
+        txManager.commit();
+    }
+
+    @Test
+    public void should_bound_threads_of_parallel_units_across_calls() throws Exception {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        List<UnitOfWorkCall<Integer>> units = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            units.add(() -> {
+                threads.add(Thread.currentThread());
+                Thread.sleep(20);
+                return personsCount();
+            });
+        }
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<Integer>>> calls = new ArrayList<>();
+            for (int i = 0; i < 8; ++i) {
+                calls.add(callers.submit(() -> txManager.txParallel(units)));
+            }
+            for (Future<List<Integer>> call : calls) {
+                assertThat(call.get(5, SECONDS), is(asList(0, 0, 0, 0)));
+            }
+        } finally {
+            callers.shutdown();
+        }
+        long parallelThreads = threads.stream().filter(t -> t.getName().startsWith("ultm-parallel-")).count();
+        assertTrue(parallelThreads <= Runtime.getRuntime().availableProcessors());
+    }
+
+    @Test
+    public void should_keep_watchdog_when_the_one_it_replaced_is_closed() throws Exception {
+        List<HeldConnection> reportedByFirst = new CopyOnWriteArrayList<>();
+        List<HeldConnection> reportedBySecond = new CopyOnWriteArrayList<>();
+        TxWatchdog first = ultm.startWatchdog(Duration.ofMillis(50), Duration.ofMillis(10), 0, reportedByFirst::add);
+        try (TxWatchdog second = ultm.startWatchdog(Duration.ofMillis(50), Duration.ofMillis(10), 0, reportedBySecond::add)) {
+            first.close();
+            txManager.tx(() -> {
+                insertPerson();
+                Thread.sleep(200);
+            });
+        }
+        assertThat(reportedByFirst.size(), is(0));
+        assertThat(reportedBySecond.size(), is(1));
+    }
+
+    @Test
+    public void group_committer_survives_unit_throwing_error() throws Exception {
+        try (GroupCommitter committer = ultm.createGroupCommitter(100, 100)) {
+            CompletableFuture<Void> failing = committer.submit(() -> {
+                insertPerson();
+                throw new AssertionError("unit error");
+            });
+            try {
+                failing.get(5, SECONDS);
+                fail("This test should not get here.");
+            } catch (ExecutionException ex) {
+                assertThat(ex.getCause().getMessage(), is("unit error"));
+            }
+            committer.submit(this::insertPerson).get(5, SECONDS);
+        }
+        assertThat(txManager.txResult(this::personsCount), is(1));
+    }
+
+    @Test
+    public void group_committer_rejects_units_after_close() throws Exception {
+        GroupCommitter committer = ultm.createGroupCommitter(100, 100);
+        committer.close();
+        try {
+            committer.submit(this::insertPerson).get(5, SECONDS);
+            fail("This test should not get here.");
+        } catch (ExecutionException ex) {
+            assertThat(ex.getCause(), instanceOf(RejectedExecutionException.class));
+        }
+    }
+
     @Test
     public void many_threads_torture_scenario() throws InterruptedException {
         ExecutorService executor = Executors.newFixedThreadPool(50);
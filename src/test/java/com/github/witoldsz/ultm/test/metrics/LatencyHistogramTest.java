@@ -0,0 +1,52 @@
+package com.github.witoldsz.ultm.test.metrics;
+
+import com.github.witoldsz.ultm.metrics.LatencyHistogram;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import org.junit.Test;
+
+/**
+ *
+ * @author witoldsz
+ */
+public class LatencyHistogramTest {
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void should_report_percentiles_within_3_percent() {
+        for (long v = 1; v <= 100_000; ++v) {
+            histogram.record(v * 1000);
+        }
+        assertThat(histogram.getCount(), is(100_000L));
+        assertThat(histogram.getMax(), is(100_000_000L));
+        assertEquals(50_000_000, histogram.getValueAtPercentile(50), 50_000_000 * 0.03);
+        assertEquals(99_000_000, histogram.getValueAtPercentile(99), 99_000_000 * 0.03);
+        assertEquals(99_900_000, histogram.getValueAtPercentile(99.9), 99_900_000 * 0.03);
+        assertEquals(50_000_500, histogram.getMean(), 1);
+    }
+
+    @Test
+    public void should_be_exact_for_small_values() {
+        histogram.record(0);
+        histogram.record(7);
+        histogram.record(63);
+        assertThat(histogram.getValueAtPercentile(0), is(0L));
+        assertThat(histogram.getValueAtPercentile(50), is(7L));
+        assertThat(histogram.getValueAtPercentile(100), is(63L));
+    }
+
+    @Test
+    public void should_handle_huge_values() {
+        histogram.record(Long.MAX_VALUE);
+        assertThat(histogram.getMax(), is(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100), Long.MAX_VALUE * 0.03);
+    }
+
+    @Test
+    public void should_report_zero_when_empty() {
+        assertThat(histogram.getValueAtPercentile(99), is(0L));
+        assertEquals(0, histogram.getMean(), 0);
+    }
+}
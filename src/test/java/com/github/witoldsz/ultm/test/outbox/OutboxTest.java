@@ -0,0 +1,119 @@
+package com.github.witoldsz.ultm.test.outbox;
+
+import com.github.witoldsz.ultm.Propagation;
+import com.github.witoldsz.ultm.TxManager;
+import com.github.witoldsz.ultm.ULTM;
+import com.github.witoldsz.ultm.outbox.InMemoryOutboxSink;
+import com.github.witoldsz.ultm.outbox.Outbox;
+import com.github.witoldsz.ultm.outbox.OutboxMessage;
+import com.github.witoldsz.ultm.outbox.OutboxRelay;
+import com.github.witoldsz.ultm.test.H2DemoDatabase;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import static java.util.Arrays.asList;
+import java.util.List;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author witoldsz
+ */
+public class OutboxTest {
+
+    private final H2DemoDatabase h2DemoDatabase = new H2DemoDatabase();
+    private final InMemoryOutboxSink sink = new InMemoryOutboxSink();
+    private ULTM ultm;
+    private TxManager txManager;
+    private Outbox outbox;
+    private OutboxRelay relay;
+
+    @Before
+    public void setup() throws SQLException {
+        h2DemoDatabase.setup();
+        try (Connection conn = h2DemoDatabase.getDataSource().getConnection()) {
+            conn.createStatement().execute(
+                "create table OUTBOX (ID bigint auto_increment primary key, TOPIC varchar, PAYLOAD varchar)");
+        }
+        ultm = new ULTM(h2DemoDatabase.getDataSource());
+        txManager = ultm.getTxManager();
+        outbox = new Outbox(ultm, "OUTBOX");
+        relay = new OutboxRelay(ultm, "OUTBOX", sink, 2);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        relay.close();
+        h2DemoDatabase.tearDown();
+    }
+
+    @Test
+    public void should_publish_messages_of_committed_transactions_only() {
+        txManager.tx(() -> {
+            outbox.append("persons", "created 1");
+            outbox.append("persons", "created 2");
+            txManager.onBeforeCommit(() -> outbox.append("audit", "persons created"));
+        });
+        try {
+            txManager.tx(() -> {
+                outbox.append("persons", "created 3");
+                throw new IllegalStateException("failure");
+            });
+            fail("This test should not get here.");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+
+        assertThat(relay.relay(), is(2));
+        assertThat(relay.relay(), is(1));
+        assertThat(relay.relay(), is(0));
+        assertThat(payloads(sink.getMessages()), equalTo(asList("created 1", "created 2", "persons created")));
+    }
+
+    @Test
+    public void should_not_publish_messages_of_nested_unit_rolled_back() {
+        txManager.tx(() -> {
+            outbox.append("events", "outer");
+            try {
+                txManager.tx(Propagation.NESTED, () -> {
+                    outbox.append("events", "nested-failed");
+                    throw new IllegalStateException("nested failure");
+                });
+                fail("This test should not get here.");
+            } catch (IllegalStateException ex) {
+                // expected
+            }
+        });
+
+        relay.relay();
+        assertThat(payloads(sink.getMessages()), equalTo(asList("outer")));
+    }
+
+    @Test
+    public void should_insert_many_messages_at_once() throws Exception {
+        txManager.tx(() -> {
+            for (int i = 0; i < 1000; ++i) {
+                outbox.append("numbers", Integer.toString(i));
+            }
+        });
+        relay.start(Duration.ofMillis(10));
+
+        long giveUpAt = System.currentTimeMillis() + 5000;
+        while (sink.getMessages().size() < 1000 && System.currentTimeMillis() < giveUpAt) {
+            Thread.sleep(10);
+        }
+        List<String> payloads = payloads(sink.getMessages());
+        assertThat(payloads.size(), is(1000));
+        assertThat(payloads.get(999), is("999"));
+    }
+
+    private static List<String> payloads(List<OutboxMessage> messages) {
+        return messages.stream().map(OutboxMessage::getPayload).collect(toList());
+    }
+}
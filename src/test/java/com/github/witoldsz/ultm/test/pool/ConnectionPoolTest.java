@@ -0,0 +1,178 @@
+package com.github.witoldsz.ultm.test.pool;
+
+import com.github.witoldsz.ultm.TxManager;
+import com.github.witoldsz.ultm.ULTM;
+import com.github.witoldsz.ultm.UnitOfWorkException;
+import com.github.witoldsz.ultm.pool.ConnectionPool;
+import com.github.witoldsz.ultm.test.H2DemoDatabase;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.sql.DataSource;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author witoldsz
+ */
+public class ConnectionPoolTest {
+
+    private final H2DemoDatabase h2DemoDatabase = new H2DemoDatabase();
+    private ConnectionPool pool;
+
+    @Before
+    public void setup() throws SQLException {
+        h2DemoDatabase.setup();
+        pool = new ConnectionPool(h2DemoDatabase.getDataSource(), 2);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        pool.close();
+        h2DemoDatabase.tearDown();
+    }
+
+    @Test
+    public void should_give_thread_the_connection_it_used_last() {
+        ULTM ultm = new ULTM(pool);
+        TxManager txManager = ultm.getTxManager();
+        Connection first = txManager.txResult(() -> physicalOf(ultm.getManagedDataSource().getConnection()));
+        Connection second = txManager.txResult(() -> physicalOf(ultm.getManagedDataSource().getConnection()));
+
+        assertThat(second, sameInstance(first));
+        assertThat(pool.getSize(), is(1));
+        assertThat(pool.getIdleCount(), is(1));
+    }
+
+    @Test
+    public void should_time_out_when_all_connections_are_in_use() throws SQLException {
+        pool.setConnectionTimeout(Duration.ofMillis(50));
+        Connection first = pool.getConnection();
+        Connection second = pool.getConnection();
+        try {
+            pool.getConnection();
+            fail("This test should not get here.");
+        } catch (SQLTransientConnectionException ex) {
+            assertThat(ex.getMessage(), is("Timed out waiting for connection, all 2 are in use."));
+        }
+        second.close();
+        pool.getConnection().close();
+        first.close();
+        assertThat(pool.getSize(), is(2));
+    }
+
+    @Test
+    public void should_replace_connection_which_is_no_longer_valid() throws SQLException {
+        pool.setValidationIdleTime(Duration.ZERO);
+        Connection pooled = pool.getConnection();
+        Connection physical = physicalOf(pooled);
+        pooled.close();
+        physical.close();
+
+        try (Connection replacement = pool.getConnection()) {
+            assertThat(physicalOf(replacement), not(sameInstance(physical)));
+        }
+        assertThat(pool.getSize(), is(1));
+    }
+
+    @Test
+    public void should_not_allow_using_connection_given_back() throws SQLException {
+        Connection pooled = pool.getConnection();
+        pooled.close();
+        pooled.close();
+        assertTrue(pooled.isClosed());
+        try {
+            pooled.createStatement();
+            fail("This test should not get here.");
+        } catch (SQLException ex) {
+            assertThat(ex.getMessage(), is("Connection is closed."));
+        }
+        assertThat(pool.getIdleCount(), is(1));
+    }
+
+    @Test
+    public void should_disable_auto_commit_enabled_by_borrower() throws SQLException {
+        try (Connection borrowed = pool.getConnection()) {
+            borrowed.setAutoCommit(true);
+        }
+        ULTM ultm = new ULTM(pool);
+        try {
+            ultm.getTxManager().tx(() -> {
+                insertPerson(ultm.getManagedDataSource());
+                throw new IllegalStateException("failing on purpose");
+            });
+            fail("This test should not get here.");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        assertThat(personsCount(), is(0));
+        assertThat(pool.getSize(), is(1));
+    }
+
+    @Test
+    public void should_roll_back_unfinished_transaction_of_connection_given_back() throws SQLException {
+        try (Connection pooled = pool.getConnection()) {
+            pooled.createStatement().executeUpdate("insert into PERSONS (ID, NAME) values (1, 'Mr Foo');");
+        }
+        assertThat(personsCount(), is(0));
+        assertThat(pool.getSize(), is(1));
+    }
+
+    @Test
+    public void should_not_let_next_transaction_commit_work_of_the_one_which_failed_to_commit() throws SQLException {
+        AtomicBoolean failCommit = new AtomicBoolean(true);
+        DataSource failingOnce = (DataSource) Proxy.newProxyInstance(
+            DataSource.class.getClassLoader(), new Class<?>[] {DataSource.class}, (proxy, method, args) -> {
+                Object result = method.invoke(h2DemoDatabase.getDataSource(), args);
+                if (!method.getName().equals("getConnection")) return result;
+                Connection physical = (Connection) result;
+                return Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, (p, m, a) -> {
+                        if (m.getName().equals("commit") && failCommit.getAndSet(false)) {
+                            throw new SQLException("Commit failed");
+                        }
+                        return m.invoke(physical, a);
+                    });
+            });
+        try (ConnectionPool failingPool = new ConnectionPool(failingOnce, 1)) {
+            ULTM ultm = new ULTM(failingPool);
+            TxManager txManager = ultm.getTxManager();
+            try {
+                txManager.tx(() -> insertPerson(ultm.getManagedDataSource()));
+                fail("This test should not get here.");
+            } catch (UnitOfWorkException ex) {
+                assertThat(ex.getCause().getMessage(), is("Commit failed"));
+            }
+            txManager.tx(() -> insertPerson(ultm.getManagedDataSource()));
+        }
+        assertThat(personsCount(), is(1));
+    }
+
+    private static void insertPerson(DataSource dataSource) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.createStatement().executeUpdate("insert into PERSONS (ID, NAME) values (1, 'Mr Foo');");
+        }
+    }
+
+    private int personsCount() throws SQLException {
+        try (Connection conn = h2DemoDatabase.getDataSource().getConnection();
+            ResultSet r = conn.createStatement().executeQuery("select count(*) from PERSONS")) {
+            r.next();
+            return r.getInt(1);
+        }
+    }
+
+    private static Connection physicalOf(Connection connection) throws SQLException {
+        return connection.unwrap(Connection.class);
+    }
+}